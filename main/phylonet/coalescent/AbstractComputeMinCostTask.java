@@ -1,5 +1,6 @@
 package phylonet.coalescent;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import phylonet.coalescent.IClusterCollection.VertexPair;
@@ -55,16 +56,7 @@ public abstract class AbstractComputeMinCostTask<T> {
 		int clusterSize = v.getCluster().getClusterSize();
 	
 		// SIA: base case for singelton clusters.
-		if (clusterSize <= 1 || spm.isSingleSP(v.getCluster().getBitSet())) {
-	
-			v._max_score = scoreBaseCase(inference.isRooted(), inference.trees);
-	
-			v._min_lc = (v._min_rc = null);
-			if(v._done == getOtherDoneState())
-				v._done = 4;
-			else
-				v._done = getDoneState();
-	
+		if (computeIfBaseCase()) {
 			return v._max_score;
 		}
 	
@@ -80,6 +72,60 @@ public abstract class AbstractComputeMinCostTask<T> {
 		 * .getClusterCoalNum(this.inference.trees, this.v.getCluster(),
 		 * taxonNameMap, true));
 		 */
+		if (inference.singlePass) {
+			computeResolutionsInBatch(clusterResolutions, clusterSize, clusterLevelCost);
+		} else {
+			computeResolutionsInOrder(clusterResolutions, clusterSize, clusterLevelCost);
+			/**
+			 * Should never happen
+			 */
+			if (v._min_lc == null || v._min_rc == null) {
+				noResolution();
+			}
+		}
+		/*
+		 * if (clusterSize > 450){
+		 * System.out.println(v+" \nis scored "+(v._max_score ) +
+		 * " by \n"+v._min_lc + " \n"+v._min_rc); }
+		 *//*
+		 * if (clusterSize > 5){ counter.addGoodSTB(bestSTB, clusterSize); }
+		 */
+		//johng23
+		//if it's the consumer thread
+		
+		if(v._done == getOtherDoneState())			
+			v._done = 4;
+		else
+			v._done = getDoneState();
+	
+		return v._max_score;
+	}
+
+	/**
+	 * Scores the vertex if it is a base case (a single taxon or species)
+	 * @return whether it was a base case
+	 */
+	boolean computeIfBaseCase() {
+		int clusterSize = v.getCluster().getClusterSize();
+		if (clusterSize > 1 && !spm.isSingleSP(v.getCluster().getBitSet())) {
+			return false;
+		}
+		v._max_score = scoreBaseCase(inference.isRooted(), inference.trees);
+
+		v._min_lc = (v._min_rc = null);
+		if(v._done == getOtherDoneState())
+			v._done = 4;
+		else
+			v._done = getDoneState();
+		return true;
+	}
+
+	/**
+	 * Goes over resolutions one at a time, getting each weight from the
+	 * weight calculator (in the order the producer computed them)
+	 */
+	private void computeResolutionsInOrder(Iterable<VertexPair> clusterResolutions,
+			int clusterSize, long clusterLevelCost) throws CannotResolveException {
 		for (VertexPair bi : clusterResolutions) {
 			try {
 				//					if(isWriteToQueue)
@@ -135,17 +181,7 @@ public abstract class AbstractComputeMinCostTask<T> {
 				//						if ((lscore + rscore + c)> v._max_score)
 				//System.err.println(clusterSize+"\tmissing " +(lscore + rscore + c)+"\t"+v._max_score+"\t"+(lscore + rscore + c)/v._max_score);
 	
-				if ((v._max_score != -1)
-						&& (lscore + rscore + c < v._max_score)) {
-					continue;
-				}
-				if (lscore + rscore + c == v._max_score && GlobalMaps.random.nextBoolean()) {
-					continue;
-				}
-				v._max_score = (lscore + rscore + c);
-				v._min_lc = smallV;
-				v._min_rc = bigv;
-				v._c = c;
+				updateBest(smallV, bigv, lscore + rscore, c);
 	
 			} catch (CannotResolveException c) {
 				c.printStackTrace();
@@ -154,33 +190,77 @@ public abstract class AbstractComputeMinCostTask<T> {
 				// c.getMessage());
 			}
 		}
-	
-		/**
-		 * Should never happen
-		 */
-		if (v._min_lc == null || v._min_rc == null) {
-			System.err.println("WARN: No Resolution found for ( "
-					+ v.getCluster().getClusterSize() + " taxa ):\n"
-					+ v.getCluster());
-			v._done = 2;
-			throw new CannotResolveException(v.getCluster().toString());
+	}
+
+	private void noResolution() throws CannotResolveException {
+		System.err.println("WARN: No Resolution found for ( "
+				+ v.getCluster().getClusterSize() + " taxa ):\n"
+				+ v.getCluster());
+		v._done = 2;
+		throw new CannotResolveException(v.getCluster().toString());
+	}
+
+	/**
+	 * Keeps the resolution if it is the best so far. Ties are broken at
+	 * random, or, for the wavefront DP, in favor of the resolution whose
+	 * smaller side has the smaller hash, which does not depend on the order
+	 * resolutions are visited in.
+	 */
+	private void updateBest(Vertex smallV, Vertex bigv, double childScores, double c) {
+		if ((v._max_score != -1)
+				&& (childScores + c < v._max_score)) {
+			return;
 		}
-		/*
-		 * if (clusterSize > 450){
-		 * System.out.println(v+" \nis scored "+(v._max_score ) +
-		 * " by \n"+v._min_lc + " \n"+v._min_rc); }
-		 *//*
-		 * if (clusterSize > 5){ counter.addGoodSTB(bestSTB, clusterSize); }
-		 */
-		//johng23
-		//if it's the consumer thread
-		
-		if(v._done == getOtherDoneState())			
-			v._done = 4;
-		else
-			v._done = getDoneState();
-	
-		return v._max_score;
+		if (childScores + c == v._max_score) {
+			if (inference.wavefront ? tieKey(smallV, bigv) > tieKey(v._min_lc, v._min_rc)
+					: GlobalMaps.random.nextBoolean()) {
+				return;
+			}
+		}
+		v._max_score = (childScores + c);
+		v._min_lc = smallV;
+		v._min_rc = bigv;
+		v._c = c;
+	}
+
+	private static long tieKey(Vertex a, Vertex b) {
+		return Math.min(a.getCluster().hash1, b.getCluster().hash1);
+	}
+
+	/**
+	 * Single-pass version of the loop over resolutions: visits all the
+	 * sub-clusters, then hands the resolutions of this cluster to the
+	 * batcher, which scores them together with those of other clusters
+	 * and calls {@link #addResolution} once the weights are ready.
+	 */
+	private void computeResolutionsInBatch(Iterable<VertexPair> clusterResolutions,
+			int clusterSize, long clusterLevelCost) throws CannotResolveException {
+		List<VertexPair> pairs = new ArrayList<VertexPair>();
+		for (VertexPair bi : clusterResolutions) {
+			if (newMinCostTask(bi.cluster2).compute() == null
+					|| newMinCostTask(bi.cluster1).compute() == null) {
+				new CannotResolveException(bi.both.getCluster().toString()).printStackTrace();
+				throw new RuntimeException("cannot resolve");
+			}
+			pairs.add(bi);
+		}
+		if (pairs.isEmpty()) {
+			noResolution();
+		}
+
+		Long weight = null;
+		if (clusterSize == GlobalMaps.taxonIdentifier.taxonCount()) {
+			weight = defaultWeightForFullClusters();
+		}
+		inference.resolutionBatcher.add(this, clusterLevelCost, pairs, weight);
+	}
+
+	/**
+	 * Scores one resolution, once the scores of both sides are final
+	 */
+	void addResolution(Vertex smallV, Vertex bigv, long clusterLevelCost, Long weight) {
+		double c = adjustWeight(clusterLevelCost, smallV, bigv, weight);
+		updateBest(smallV, bigv, smallV._max_score + bigv._max_score, c);
 	}
 
 	public Long getWeight(T t) {
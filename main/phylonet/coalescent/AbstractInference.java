@@ -43,8 +43,19 @@ public abstract class AbstractInference<T> implements Cloneable{
 	protected Options options;
 	DecimalFormat df;
 	
-	private LinkedBlockingQueue<Long> queueWeightResults;
+	private WeightRing queueWeightResults;
 	private LinkedBlockingQueue<Iterable<VertexPair>> queueClusterResolutions;
+	/*
+	 * When set, the DP finds cluster resolutions and weights itself, in a
+	 * single traversal, instead of reading them from the producer's queues
+	 */
+	boolean singlePass = false;
+	ResolutionBatcher resolutionBatcher;
+	/*
+	 * When set (with singlePass), clusters below the top are scored level by
+	 * level with WavefrontDP, and ties are broken deterministically
+	 */
+	boolean wavefront = false;
 
 	double estimationFactor = 0;
 	
@@ -73,6 +84,9 @@ public abstract class AbstractInference<T> implements Cloneable{
 	}
 	
 	public Iterable<VertexPair> getClusterResolutions(Vertex v) {
+			if (singlePass) {
+				return computeClusterResolutions(v);
+			}
 			Iterable<VertexPair> ret = null;
 			try{
 				ret = getQueueClusterResolutions().take();
@@ -85,6 +99,48 @@ public abstract class AbstractInference<T> implements Cloneable{
 
 	}
 	
+	/**
+	 * All ways of dividing the given cluster into two clusters of the
+	 * search space (only one for the cluster of all taxa)
+	 */
+	Iterable<VertexPair> computeClusterResolutions(Vertex v) {
+		IClusterCollection containedVertecies = this.dataCollection.clusters.getContainedClusters(v);
+		int clusterSize = v.getCluster().getClusterSize();
+		
+		Iterable<VertexPair> clusterResolutions;
+		
+		if (clusterSize == GlobalMaps.taxonIdentifier.taxonCount()) {
+			clusterResolutions = new ArrayList<VertexPair>();
+			Vertex v1 = null;
+			int smallestSize = 1;
+			while (v1 == null) {
+				Set<Vertex> cs = containedVertecies.getSubClusters(smallestSize);
+				if (cs.size() != 0) {
+					for(Vertex csi : cs) {
+						if(csi.getCluster().getBitSet().nextSetBit(0) == 0) {
+							v1 = csi;
+							break;
+						}
+					}				
+				}
+				else 
+					smallestSize++;
+			}
+			for (Vertex v2: containedVertecies.getSubClusters(GlobalMaps.taxonIdentifier.taxonCount()-smallestSize))
+			{
+				if (v1.getCluster().isDisjoint(v2.getCluster())) {
+					VertexPair vp = new VertexPair(v1, v2, v);
+					((ArrayList<VertexPair>) clusterResolutions).add(vp);
+					break;
+				}
+				//System.out.println(v2.toString());
+			}
+		} else {
+			clusterResolutions = containedVertecies.getClusterResolutions();
+		}
+		return clusterResolutions;
+	}
+
 	protected Collapse.CollapseDescriptor doCollapse(List<Tree> trees) {
 		Collapse.CollapseDescriptor cd = Collapse.collapse(trees);
 		return cd;
@@ -172,7 +228,17 @@ public abstract class AbstractInference<T> implements Cloneable{
 			//vertexStack.push(all);
 			AbstractComputeMinCostTask<T> allTask = newComputeMinCostTask(this,all);
 			//ForkJoinPool pool = new ForkJoinPool(1);
+			if (wavefront) {
+				new WavefrontDP<T>(this).run(all);
+			}
+			if (singlePass) {
+				resolutionBatcher = new ResolutionBatcher((WQWeightCalculator) weightCalculator);
+			}
 			allTask.compute();
+			if (singlePass) {
+				resolutionBatcher.finish();
+				resolutionBatcher = null;
+			}
 			double v = all._max_score;
 			if (v == Integer.MIN_VALUE) {
 				throw new CannotResolveException(all.getCluster().toString());
@@ -244,7 +310,10 @@ public abstract class AbstractInference<T> implements Cloneable{
 			}
 			sol._st = tr;
 		} else {
-			sol._st = Utils.buildTreeFromClusters2(minClusters, spm.getSTTaxonIdentifier(), false, extraTrees.get(0), newSpecies);
+			sol._st = Utils.buildTreeFromClusters(minClusters, spm.getSTTaxonIdentifier(), false);
+		}
+		if (newSpecies != null) {
+			sol._branchLabel = Utils.getPlacementBranch(sol._st, extraTrees.get(0), newSpecies);
 		}
 
 		/* HashMap<TNode,BitSet> map = new HashMap<TNode,BitSet>();
@@ -446,11 +515,11 @@ public abstract class AbstractInference<T> implements Cloneable{
 		this.queueClusterResolutions = queueClusterResolutions;
 	}
 
-	public LinkedBlockingQueue<Long> getQueueWeightResults() {
+	public WeightRing getQueueWeightResults() {
 		return queueWeightResults;
 	}
 
-	public void setQueueWeightResults(LinkedBlockingQueue<Long> queueWeightResults) {
+	public void setQueueWeightResults(WeightRing queueWeightResults) {
 		this.queueWeightResults = queueWeightResults;
 	}
 
@@ -2,12 +2,13 @@ package phylonet.coalescent;
 
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import phylonet.tree.model.Tree;
 
 public abstract class AbstractWeightCalculator<T> {
 
-	protected int callcounter = 0;
+	protected final AtomicInteger callcounter = new AtomicInteger();
 	protected HashMap<T, Long> weights;
 	protected long lastTime;
 	int counter;
@@ -21,7 +22,7 @@ public abstract class AbstractWeightCalculator<T> {
 	}
 
 	public int getCalculatedWeightCount() {
-			return this.callcounter;
+			return this.callcounter.get();
 	}
 
 	Long getCalculatedWeight(T t) {
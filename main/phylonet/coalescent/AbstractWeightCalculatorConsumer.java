@@ -1,21 +1,19 @@
 package phylonet.coalescent;
 
-import java.util.concurrent.LinkedBlockingQueue;
-
 public abstract class AbstractWeightCalculatorConsumer<T> extends AbstractWeightCalculator<T> implements Cloneable {
 	
 	private boolean save;
-	private LinkedBlockingQueue<Long> queue;
+	private WeightRing queue;
 	private boolean threadingOff = false;
 	
-	public AbstractWeightCalculatorConsumer(boolean save, LinkedBlockingQueue<Long> queue) {
+	public AbstractWeightCalculatorConsumer(boolean save, WeightRing queue) {
 		this.save = save;
 		this.queue = queue;
 		this.lastTime = System.currentTimeMillis();
 	}
 	
 	public Long getWeight(T t) {
-		this.callcounter ++;
+		this.callcounter.incrementAndGet();
 		Long weight = getCalculatedWeight(t);
 		if (weight == null) {
 
@@ -29,12 +27,7 @@ public abstract class AbstractWeightCalculatorConsumer<T> extends AbstractWeight
 				return weight;
 			}
 			else {
-				try {
-					weight = queue.take();
-				}
-				catch(Exception e) {
-					e.printStackTrace();
-				}
+				weight = queue.take();
 				if(weight == -23) {//random number from CommandLine used as a "poison pill"
 					setThreadingOff(true);
 					weight =  calculateWeight(convertToSingletonArray(t))[0];
@@ -43,7 +36,7 @@ public abstract class AbstractWeightCalculatorConsumer<T> extends AbstractWeight
 						weights.put(t, weight);
 						count = weights.size();
 					} else {
-						count = this.callcounter;
+						count = this.callcounter.get();
 					}
 					if (count % 100000 == 0) {
 						System.err.println("Calculated "+ count +" weights; time (seconds): " + (System.currentTimeMillis() - lastTime)/1000);
@@ -58,7 +51,7 @@ public abstract class AbstractWeightCalculatorConsumer<T> extends AbstractWeight
 				weights.put(t, weight);
 				count = weights.size();
 			} else {
-				count = this.callcounter;
+				count = this.callcounter.get();
 			}
 			if (count % 100000 == 0) {
 				System.err.println("Calculated "+ count +" weights; time (seconds): " + (System.currentTimeMillis() - lastTime)/1000);
@@ -72,8 +65,19 @@ public abstract class AbstractWeightCalculatorConsumer<T> extends AbstractWeight
 		return weight;
 
 	}
+	/**
+	 * Counts weights computed in a batch, outside {@link #getWeight}
+	 */
+	void countWeights(int count) {
+		int after = this.callcounter.addAndGet(count);
+		if ((after - count) / 100000 != after / 100000) {
+			System.err.println("Calculated "+ after +" weights; time (seconds): " + (System.currentTimeMillis() - lastTime)/1000);
+			lastTime = System.currentTimeMillis();
+		}
+	}
+
 	/*public Long getWeight2(T t) {
-		this.callcounter ++;
+		this.callcounter.incrementAndGet();
 		Long weight = getCalculatedWeight(t);
 		if (weight == null) {
 
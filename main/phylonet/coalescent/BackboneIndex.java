@@ -0,0 +1,219 @@
+package phylonet.coalescent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import phylonet.tree.io.NewickReader;
+import phylonet.tree.io.ParseException;
+import phylonet.tree.model.Tree;
+
+/**
+ * The part of placement that depends on the gene trees and the backbone
+ * but not on the species being placed: the taxon table, which gene trees
+ * are used, quartet counts restricted to the backbone (per species missing
+ * from it, the quartets including that species), and the tripartition
+ * weights of the backbone internal nodes. Their sum is the part of every
+ * placement score without the new species, so a run with a saved index
+ * only counts the quartets that involve the query.
+ *
+ * The index can be saved to a file and read back by later runs on the
+ * same input file (path, size and modification time), the same number of
+ * gene trees, the same backbone and the same minimum number of leaves.
+ */
+class BackboneIndex {
+
+	private static final int MAGIC = 0x42424931;
+
+	String key;
+	Tree backbone;
+	/*
+	 * Backbone species first, then all other species of the gene trees
+	 */
+	String[] taxa;
+	/*
+	 * Positions of the gene trees that are used, in the input list
+	 */
+	int[] selected;
+	long backboneQuartets = 0;
+	/*
+	 * For each species not in the backbone, the number of quartets that
+	 * include it and the number of gene trees that have it
+	 */
+	Map<String, long[]> speciesQuartets = new HashMap<String, long[]>();
+	/*
+	 * Tripartition weight of each backbone vertex without any new species
+	 * (0 for leaves and for a binary root); null until computed
+	 */
+	long[] backboneWeights;
+
+	private BackboneIndex() {
+	}
+
+	/**
+	 * Builds the index with one pass over the gene trees. Trees without
+	 * any new species give the same score to every branch and are not
+	 * used, neither are trees that would have fewer than minleaves leaves
+	 * when restricted to the backbone plus one new species.
+	 */
+	BackboneIndex(File input, List<Tree> geneTrees, Tree backbone, Integer minleaves) {
+		this.key = key(input, geneTrees, backbone, minleaves);
+		this.backbone = backbone;
+		Set<String> bbLeaves = new HashSet<String>(Arrays.asList(backbone.getLeaves()));
+		Set<String> names = new LinkedHashSet<String>(Arrays.asList(backbone.getLeaves()));
+		List<Integer> used = new ArrayList<Integer>();
+		for (int t = 0; t < geneTrees.size(); t++) {
+			List<String> present = new ArrayList<String>();
+			long b = 0;
+			for (String leaf : geneTrees.get(t).getLeaves()) {
+				if (bbLeaves.contains(leaf)) {
+					b++;
+				} else {
+					present.add(leaf);
+				}
+			}
+			if (present.isEmpty() || (minleaves != null && b + 1 < minleaves)) {
+				continue;
+			}
+			used.add(t);
+			names.addAll(present);
+			backboneQuartets += choose(b, 4);
+			for (String species : present) {
+				long[] q = speciesQuartets.get(species);
+				if (q == null) {
+					q = new long[2];
+					speciesQuartets.put(species, q);
+				}
+				q[0] += choose(b, 3);
+				q[1]++;
+			}
+		}
+		this.taxa = names.toArray(new String[names.size()]);
+		this.selected = new int[used.size()];
+		for (int i = 0; i < selected.length; i++) {
+			selected[i] = used.get(i);
+		}
+	}
+
+	/**
+	 * n choose k, one factor at a time so that intermediate products stay
+	 * within a small factor of the result
+	 */
+	static long choose(long n, int k) {
+		long c = 1;
+		for (int i = 0; i < k; i++) {
+			c = c * (n - i) / (i + 1);
+		}
+		return c;
+	}
+
+	static String key(File input, List<Tree> geneTrees, Tree backbone, Integer minleaves) {
+		return GeneTreeCache.digest(input.getAbsolutePath() + "\n" + input.length() + "\n"
+				+ input.lastModified() + "\n" + geneTrees.size() + "\n" + minleaves + "\n"
+				+ backbone.toNewick());
+	}
+
+	/**
+	 * Reads the given index file, or returns null if it does not exist or
+	 * was written for other input.
+	 */
+	static BackboneIndex load(File file, String key) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16));
+		try {
+			BackboneIndex index = new BackboneIndex();
+			if (in.readInt() != MAGIC || !key.equals(index.key = readString(in))) {
+				System.err.println("Ignoring backbone index " + file + " written for other input");
+				return null;
+			}
+			try {
+				index.backbone = new NewickReader(new StringReader(readString(in))).readTree();
+			} catch (ParseException e) {
+				throw new IOException("Corrupt backbone index " + file, e);
+			}
+			index.taxa = new String[in.readInt()];
+			for (int i = 0; i < index.taxa.length; i++) {
+				index.taxa[i] = readString(in);
+			}
+			index.selected = new int[in.readInt()];
+			for (int i = 0; i < index.selected.length; i++) {
+				index.selected[i] = in.readInt();
+			}
+			index.backboneQuartets = in.readLong();
+			int species = in.readInt();
+			for (int i = 0; i < species; i++) {
+				String name = readString(in);
+				index.speciesQuartets.put(name, new long[] { in.readLong(), in.readLong() });
+			}
+			index.backboneWeights = new long[in.readInt()];
+			for (int i = 0; i < index.backboneWeights.length; i++) {
+				index.backboneWeights[i] = in.readLong();
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 16));
+		out.writeInt(MAGIC);
+		writeString(out, key);
+		writeString(out, backbone.toNewick());
+		out.writeInt(taxa.length);
+		for (String taxon : taxa) {
+			writeString(out, taxon);
+		}
+		out.writeInt(selected.length);
+		for (int t : selected) {
+			out.writeInt(t);
+		}
+		out.writeLong(backboneQuartets);
+		out.writeInt(speciesQuartets.size());
+		for (Map.Entry<String, long[]> e : speciesQuartets.entrySet()) {
+			writeString(out, e.getKey());
+			out.writeLong(e.getValue()[0]);
+			out.writeLong(e.getValue()[1]);
+		}
+		out.writeInt(backboneWeights.length);
+		for (long w : backboneWeights) {
+			out.writeLong(w);
+		}
+		out.close();
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not write backbone index " + file);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
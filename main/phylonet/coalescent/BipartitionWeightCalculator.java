@@ -1,13 +1,16 @@
 package phylonet.coalescent;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import phylonet.tree.model.Tree;
 import phylonet.tree.model.sti.STITreeCluster;
+import phylonet.util.BitSet;
 
 // TODO: why extend the abstract? It doesn't seem to follow the same pattern exactly
 class BipartitionWeightCalculator extends AbstractWeightCalculatorConsumer<Tripartition> {
@@ -22,233 +25,270 @@ class BipartitionWeightCalculator extends AbstractWeightCalculatorConsumer<Tripa
 		this.dataCollection = (WQDataCollection) inference.dataCollection;
 		this.inference = (WQInference) inference;
 		this.geneTreesAsInts = geneAsInts;
+		int depth = 0;
+		for (int gtb : geneAsInts) {
+			if (gtb == Integer.MIN_VALUE) {
+				depth = 0;
+			} else {
+				depth += gtb >= 0 ? 1 : gtb + 1;
+				maxDepth = Math.max(maxDepth, depth);
+			}
+		}
 	}
 
 	
-	class Intersects {
-		long s0;
-		long s1;
-		long s2;
-		long s3;
-
+	/* Number of branches scored together in one pass over the gene trees */
+	private static final int CHUNK = 64;
 
-		public Intersects(long s0, long s1, long s2, long s3) {
-			this.s0 = s0;
-			this.s1 = s1;
-			this.s2 = s2;
-			this.s3 = s3;
-		}
-		
-        public Intersects(Intersects side1, Intersects side2) {
-            this(side1.s0+side2.s0,
-					side1.s1+side2.s1,
-					side1.s2+side2.s2,
-					side1.s3+side2.s3);               
-        }	
+	/* The four sides (two pairs) of the quadripartitions of each branch */
+	private static final int[][] PAIRINGS = {{0, 1, 2, 3}, {0, 2, 1, 3}, {0, 3, 1, 2}};
 
-		public Intersects(Intersects other) {
-			this.s0 = other.s0;
-			this.s1 = other.s1;
-			this.s2 = other.s2;
-			this.s3 = other.s3;
-		}
-
-		public void addin(Intersects pop) {
-			this.s0 += pop.s0;
-			this.s1 += pop.s1;
-			this.s2 += pop.s2;  
-			this.s3 += pop.s3;
-		}
+	/* Largest number of nodes on the stack when going over a gene tree */
+	private int maxDepth;
 
-		public void subtract(Intersects pop) {
-			this.s0 -= pop.s0;
-			this.s1 -= pop.s1;
-			this.s2 -= pop.s2;         
-			this.s3 -= pop.s3;   
-		}
-
-		public String toString() {
-			return this.s0+","+this.s1+"|"+this.s2+","+this.s3;
-		}
+	private List<STITreeCluster[]> branches = new ArrayList<STITreeCluster[]>();
+	
+	class Results {
+		double [] qs;
+		int effn;
 		
-        public boolean isNotEmpty() {
-        	return (this.s0 + this.s1 + this.s2 + this.s3) != 0;
-        }
-        
-        public boolean hasEmpty() {
-        	return this.maxPossible() == 0;
-        }
-        
-        public long maxPossible() {
-        	return (this.s0 * this.s1 * this.s2 * this.s3);
-        }
+		Results (double [] q, int n){
+			qs = q;
+			effn = n;
+		}
 	}
 
-	private long allcases(Intersects side1, Intersects side2, Intersects side3) {
-		return F(side1.s0,side2.s1,side3.s2,side3.s3)+
-				F(side1.s1,side2.s0,side3.s2,side3.s3)+
-				F(side1.s2,side2.s3,side3.s0,side3.s1)+
-				F(side1.s3,side2.s2,side3.s0,side3.s1)+
-				F(side3.s0,side2.s1,side1.s2,side1.s3)+
-				F(side3.s1,side2.s0,side1.s2,side1.s3)+
-				F(side3.s2,side2.s3,side1.s0,side1.s1)+
-				F(side3.s3,side2.s2,side1.s0,side1.s1)+
-				F(side1.s0,side3.s1,side2.s2,side2.s3)+
-				F(side1.s1,side3.s0,side2.s2,side2.s3)+
-				F(side1.s2,side3.s3,side2.s0,side2.s1)+
-				F(side1.s3,side3.s2,side2.s0,side2.s1);
+	/**
+	 * Adds a branch, given by the four sides around it, to those scored
+	 * by the next {@link #getWeights()}
+	 * @return the position of its results
+	 */
+	synchronized int addBranch(STITreeCluster c1, STITreeCluster c2, STITreeCluster sister, STITreeCluster remaining) {
+		branches.add(new STITreeCluster[] {c1, c2, sister, remaining});
+		return branches.size() - 1;
 	}
 
-	Intersects getSide(int i, Quadrapartition quart) {
-		if (quart.cluster1.getBitSet().get(i)) {
-			return new Intersects(1,0,0,0);
-		} else if (quart.cluster2.getBitSet().get(i)) {
-			return new Intersects(0,1,0,0);
-		} else if (quart.cluster3.getBitSet().get(i)) {
-			return  new Intersects(0,0,1,0);
-		} else if (quart.cluster4.getBitSet().get(i)) {
-			return  new Intersects(0,0,0,1);
+	/**
+	 * Scores the three quadripartitions of all branches added, a chunk
+	 * of branches per pass over the gene trees, with the chunks on all
+	 * threads
+	 * @return for each branch, the support of c1 c2 | sister remaining,
+	 *   c1 sister | c2 remaining and c1 remaining | c2 sister
+	 */
+	Results[] getWeights() {
+		final STITreeCluster[][] all;
+		synchronized (this) {
+			all = branches.toArray(new STITreeCluster[branches.size()][]);
+			branches.clear();
 		}
-		else {
-			return  new Intersects(0,0,0,0);
+		Results[] ret = new Results[all.length];
+		List<Future<Results[]>> chunks = new ArrayList<Future<Results[]>>();
+		for (int from = 0; from < all.length; from += CHUNK) {
+			final STITreeCluster[][] chunk = Arrays.copyOfRange(all, from, Math.min(from + CHUNK, all.length));
+			chunks.add(Threading.submit(new Callable<Results[]>() {
+				@Override
+				public Results[] call() {
+					return getWeights(chunk);
+				}
+			}));
+		}
+		try {
+			for (int c = 0; c < chunks.size(); c++) {
+				Results[] r = chunks.get(c).get();
+				System.arraycopy(r, 0, ret, c * CHUNK, r.length);
+			}
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
 		}
+		return ret;
 	}
-	
-	class Results {
-		double [] qs;
-		int effn;
+
+	/**
+	 * Scores the given branches in one pass over the gene trees. For each
+	 * branch, a node of a gene tree is the number of its leaves on each of
+	 * the four sides; these are kept in a flat stack, four per branch.
+	 */
+	private Results[] getWeights(STITreeCluster[][] sides) {
+		int n = sides.length;
+		int taxa = GlobalMaps.taxonIdentifier.taxonCount();
 		
-		Results (double [] q, int n){
-			qs = q;
-			effn = n;
+		/* Side of each taxon for each branch (4 if none) */
+		byte[] side = new byte[taxa * n];
+		Arrays.fill(side, (byte) 4);
+		long[][] words = new long[4 * n][];
+		for (int b = 0; b < n; b++) {
+			for (int k = 0; k < 4; k++) {
+				BitSet bs = sides[b][k].getBitSet();
+				words[4 * b + k] = bs.getArray();
+				for (int t = bs.nextSetBit(0); t >= 0; t = bs.nextSetBit(t + 1)) {
+					if (side[t * n + b] == 4) {
+						side[t * n + b] = (byte) k;
+					}
+				}
+			}
 		}
-	}
-
-	public Results getWeight(Quadrapartition [] quad ) {
-		long [] fi = {0l,0l,0l};
-		long mi = 0l;
-		double [] weight = {0l,0l,0l};
-		int effectiven = 0;
-		Intersects []  allsides = new Intersects[3];
+
+		long[] stack = new long[(maxDepth + 1) * 4 * n];
+		long[] allsides = new long[4 * n];
+		long[] mi = new long[n];
+		long[] fi = new long[3 * n];
+		double[] weight = new double[3 * n];
+		int[] effectiven = new int[n];
+		int[] active = new int[n];
+		int activeCount = 0;
+		int top = 0;
 		boolean newTree = true;
-		boolean cruise = false;
-		
-		//Quadrapartition []  quad = new Quadrapartition [] {quadm, new Quadrapartition(quadm.cluster1, quadm.cluster3, quadm.cluster2, quadm.cluster4), new Quadrapartition(quadm.cluster1, quadm.cluster4, quadm.cluster2, quadm.cluster3)};
 		Iterator<STITreeCluster> tit = dataCollection.treeAllClusters.iterator();
-		Deque<Intersects> [] stack = new Deque [] {new ArrayDeque<Intersects>(), new ArrayDeque<Intersects>(), new ArrayDeque<Intersects>()};
 
-		for (Integer gtb: geneTreesAsInts){
-			//n++;
+		for (int gtb : geneTreesAsInts) {
 			if (newTree) {
-				STITreeCluster all = tit.next();
-				for (int i=0; i<3; i++){
-					allsides[i] = new Intersects(
-						quad[i].cluster1.getBitSet().intersectionSize(all.getBitSet()),
-						quad[i].cluster2.getBitSet().intersectionSize(all.getBitSet()),
-						quad[i].cluster3.getBitSet().intersectionSize(all.getBitSet()),
-						quad[i].cluster4.getBitSet().intersectionSize(all.getBitSet())
-						);
-				}
-				newTree = false;
-				mi = allsides[0].maxPossible();
-				
-				if ( mi != 0) {
-					effectiven++;
-				} else {
-					cruise = true;
+				long[] all = tit.next().getBitSet().getArray();
+				activeCount = 0;
+				for (int b = 0; b < n; b++) {
+					long m = 1;
+					for (int k = 0; k < 4; k++) {
+						allsides[4 * b + k] = intersectionSize(words[4 * b + k], all);
+						m *= allsides[4 * b + k];
+					}
+					mi[b] = m;
+					// Gene trees missing a side do not count for the branch
+					if (m != 0) {
+						effectiven[b]++;
+						active[activeCount++] = b;
+					}
 				}
-				//sum +=  F(allsides.s0, allsides.s1, allsides.s2, allsides.s3);
+				newTree = false;
 			}
 			if (gtb == Integer.MIN_VALUE) {
-				if (!cruise) {
-					//long fiall = fi[0] + fi[1] + fi[2];
-					//if (fiall != 0)
-					//double tf = 0.0; 
-					for (int i=0; i<3; i++) {
-						double efffreq = (fi[i]+0.0)/(2.0*mi);
-					/*if (efffreq != 1 && efffreq != 0)
-						System.err.println(efffreq);*/
-						weight[i] += efffreq;
-						//tf += efffreq;
-					}
-					//if (tf < .99) {
-						//System.err.println("Warning: a gene tree is contributing only "+tf +" to total score of the branch with mi: "+mi);
-					//}
+				for (int a = 0; a < activeCount; a++) {
+					int b = active[a];
+					for (int i = 3 * b; i < 3 * b + 3; i++) {
+						weight[i] += (fi[i] + 0.0) / (2.0 * mi[b]);
+						fi[i] = 0;
+					}
 				}
-				for (int i=0; i<3; i++) stack[i].clear();
+				top = 0;
 				newTree = true;
-				cruise = false;
-				fi = new long [] {0l,0l,0l};
-				mi = 0;
+			} else if (activeCount == 0) {
+				continue;
+			} else if (gtb >= 0) {
+				int p = top * 4 * n;
+				for (int a = 0; a < activeCount; a++) {
+					int b = active[a];
+					int q = p + 4 * b;
+					stack[q] = stack[q + 1] = stack[q + 2] = stack[q + 3] = 0;
+					int s = side[gtb * n + b];
+					if (s != 4) {
+						stack[q + s] = 1;
+					}
+				}
+				top++;
+			} else if (gtb == -2) {
+				int x = (top - 1) * 4 * n, y = (top - 2) * 4 * n;
+				for (int a = 0; a < activeCount; a++) {
+					int b = active[a];
+					int p = x + 4 * b, q = y + 4 * b, r = 4 * b;
+					long c0 = stack[p], c1 = stack[p + 1], c2 = stack[p + 2], c3 = stack[p + 3];
+					long d0 = stack[q], d1 = stack[q + 1], d2 = stack[q + 2], d3 = stack[q + 3];
+					long e0 = allsides[r] - c0 - d0, e1 = allsides[r + 1] - c1 - d1,
+							e2 = allsides[r + 2] - c2 - d2, e3 = allsides[r + 3] - c3 - d3;
+					// The three pairings, in the order of PAIRINGS
+					fi[3 * b] += allcases(c0, c1, c2, c3, d0, d1, d2, d3, e0, e1, e2, e3);
+					fi[3 * b + 1] += allcases(c0, c2, c1, c3, d0, d2, d1, d3, e0, e2, e1, e3);
+					fi[3 * b + 2] += allcases(c0, c3, c1, c2, d0, d3, d1, d2, e0, e3, e1, e2);
+					stack[q] = c0 + d0;
+					stack[q + 1] = c1 + d1;
+					stack[q + 2] = c2 + d2;
+					stack[q + 3] = c3 + d3;
+				}
+				top--;
 			} else {
-				if (cruise) continue;
-				if (gtb >= 0){
-					for (int i=0; i<3; i++) stack[i].push(getSide(gtb, quad[i]));
-				} else  if (gtb == -2) {
-					for (int i=0; i<3; i++) {
-						Intersects side1 = stack[i].pop();
-						Intersects side2 = stack[i].pop();
-					Intersects newSide = new Intersects(side1, side2);
-						stack[i].push(newSide);
-						Intersects side3 = new Intersects(allsides[i]);
-					side3.subtract(newSide);
-	
-						fi[i] += allcases(side1, side2, side3);
-					}
-	
-					//geneTreesAsIntersects[n] = newSide;
-				} else {
-					for (int i=0; i<3; i++) {
-						ArrayList<Intersects> children = new ArrayList<Intersects>();
-					    Intersects newSide = new Intersects(0,0,0,0);
-						    for (int j = gtb; j < 0 ; j++) {
-						        Intersects pop = stack[i].pop();
-					        children.add(pop);
-					        newSide.addin(pop);
-					    }
-						    stack[i].push(newSide);
-			                Intersects sideRemaining = new Intersects (allsides[i]);
-		                sideRemaining.subtract(newSide);
-		                if ( sideRemaining.isNotEmpty()) {
-		                    children.add(sideRemaining);
-		                }
-		                    
-		                long sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0, sum01 = 0, sum23 = 0;
-		                for (int j = 0; j < children.size(); j++){
-		                	Intersects side = children.get(j);
-		                	sum0 += side.s0;
-		                	sum1 += side.s1;
-		                	sum2 += side.s2;
-		                	sum3 += side.s3;
-		                	sum01 += side.s0 * side.s1;
-		                	sum23 += side.s2 * side.s3;
-	                        }
-		                for (int j = 0; j < children.size(); j++) {
-		                	Intersects side = children.get(j);
-		                	fi[i] += side.s0 * side.s1 * ((sum2 - side.s2) * (sum3 - side.s3) - sum23 + side.s2 * side.s3);
-		                	fi[i] += side.s2 * side.s3 * ((sum0 - side.s0) * (sum1 - side.s1) - sum01 + side.s0 * side.s1);
-	                    }
-	                }
+				int first = top + gtb;
+				for (int a = 0; a < activeCount; a++) {
+					int b = active[a];
+					long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+					for (int j = first; j < top; j++) {
+						int q = (j * n + b) * 4;
+						s0 += stack[q];
+						s1 += stack[q + 1];
+						s2 += stack[q + 2];
+						s3 += stack[q + 3];
+					}
+					// The rest of the gene tree is one more child, if not empty
+					int end = top, q = (top * n + b) * 4, r = 4 * b;
+					stack[q] = allsides[r] - s0;
+					stack[q + 1] = allsides[r + 1] - s1;
+					stack[q + 2] = allsides[r + 2] - s2;
+					stack[q + 3] = allsides[r + 3] - s3;
+					if (stack[q] + stack[q + 1] + stack[q + 2] + stack[q + 3] != 0) {
+						end++;
+					}
+					for (int i = 0; i < 3; i++) {
+						fi[3 * b + i] += polytomy(stack, first, end, n, b, PAIRINGS[i]);
+					}
+					q = (first * n + b) * 4;
+					stack[q] = s0;
+					stack[q + 1] = s1;
+					stack[q + 2] = s2;
+					stack[q + 3] = s3;
 				}
+				top = first + 1;
 			}
 		}
 
-		return  new Results(weight,effectiven);
+		Results[] ret = new Results[n];
+		for (int b = 0; b < n; b++) {
+			ret[b] = new Results(Arrays.copyOfRange(weight, 3 * b, 3 * b + 3), effectiven[b]);
+		}
+		return ret;
+	}
+
+	private static int intersectionSize(long[] a, long[] b) {
+		int sum = 0;
+		for (int k = Math.min(a.length, b.length) - 1; k >= 0; k--) {
+			sum += Long.bitCount(a[k] & b[k]);
+		}
+		return sum;
+	}
+
+	/**
+	 * Quartets of a binary node with children a and b, and c the rest of
+	 * the gene tree, resolved as sides 0 1 | 2 3
+	 */
+	private static long allcases(long a0, long a1, long a2, long a3, long b0, long b1, long b2, long b3,
+			long c0, long c1, long c2, long c3) {
+		return a0 * b1 * c2 * c3 + a1 * b0 * c2 * c3 + a2 * b3 * c0 * c1 + a3 * b2 * c0 * c1
+				+ c0 * b1 * a2 * a3 + c1 * b0 * a2 * a3 + c2 * b3 * a0 * a1 + c3 * b2 * a0 * a1
+				+ a0 * c1 * b2 * b3 + a1 * c0 * b2 * b3 + a2 * c3 * b0 * b1 + a3 * c2 * b0 * b1;
 	}
-	
-/*	private boolean checkFutileCalcs(Intersects side1, Intersects side2) {
-		return ((side1.s0+side2.s0 == 0? 1 :0) +
-    			(side1.s1+side2.s1 == 0? 1 :0) + 
-    			(side1.s2+side2.s2 == 0? 1:0) > 1);
-	}*/
-	
 
-	private long F(long a,long b,long c, long d) {
-		if (a<0 || b<0 || c<0|| d<0) {
-			throw new RuntimeException("negative side not expected: "+a+" "+b+" "+c);
+	/**
+	 * Quartets of a polytomy, with the children of the branch at stack
+	 * entries from first to end, resolved as sides o[0] o[1] | o[2] o[3]
+	 */
+	private static long polytomy(long[] stack, int first, int end, int n, int b, int[] o) {
+		long sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0, sum01 = 0, sum23 = 0;
+		for (int j = first; j < end; j++) {
+			int q = (j * n + b) * 4;
+			long x0 = stack[q + o[0]], x1 = stack[q + o[1]], x2 = stack[q + o[2]], x3 = stack[q + o[3]];
+			sum0 += x0;
+			sum1 += x1;
+			sum2 += x2;
+			sum3 += x3;
+			sum01 += x0 * x1;
+			sum23 += x2 * x3;
+		}
+		long f = 0;
+		for (int j = first; j < end; j++) {
+			int q = (j * n + b) * 4;
+			long x0 = stack[q + o[0]], x1 = stack[q + o[1]], x2 = stack[q + o[2]], x3 = stack[q + o[3]];
+			f += x0 * x1 * ((sum2 - x2) * (sum3 - x3) - sum23 + x2 * x3);
+			f += x2 * x3 * ((sum0 - x0) * (sum1 - x1) - sum01 + x0 * x1);
 		}
-		return a*b*c*d;
-	}	
+		return f;
+	}
 
 	class Quadrapartition {
 
@@ -62,6 +62,13 @@ public class CommandLine {
 
 	protected static SimpleJSAP jsap;
 
+	/**
+	 * Species to be placed (--placement) and the unpruned gene trees 
+	 * they are placed from; parsed only once per run. 
+	 */
+	private static List<String> placementQueries;
+	private static List<Tree> placementGeneTrees;
+
 	private static void exitWithErr(String extraMessage) {
 		System.err.println();
 		System.err.println(extraMessage);
@@ -103,6 +110,24 @@ public class CommandLine {
 						new Switch("no scoring", JSAP.NO_SHORTFLAG , "no-scoring", 
 								"Do not score final species tree."),
 
+						new Switch("wavefront", JSAP.NO_SHORTFLAG, "wavefront",
+								"Without GPUs, runs the dynamic programming on all threads, one cluster size at a time,"+
+								" and breaks ties between equally good resolutions deterministically."),
+
+						new Switch("branch and bound", JSAP.NO_SHORTFLAG, "branch-and-bound",
+								"Runs the dynamic programming as with --wavefront, but scores the resolutions of each cluster"+
+								" most promising first and skips those whose upper bound cannot beat the best score found."),
+
+						new FlaggedOption("kernel", JSAP.STRING_PARSER,
+								PolytreeKernels.AUTO, JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "kernel",
+								"Code used for tripartition weights without GPUs: "+PolytreeKernels.SCALAR+" or "+PolytreeKernels.BATCHED+
+								" (Java), or "+PolytreeKernels.NATIVE+" (AVX library). By default ("+
+								PolytreeKernels.AUTO+"), each is checked and timed at startup and the fastest is used."),
+
+						new FlaggedOption("kernel batch", JSAP.INTEGER_PARSER,
+								"0", JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "kernel-batch",
+								"Number of tripartitions the kernel scores at once. By default (0), the fastest is used."),
+
 						new FlaggedOption("cpu threads", JSAP.INTEGER_PARSER,
 								"-1", JSAP.NOT_REQUIRED, 'T', "cpu-threads",
 								"Number of threads to use. "),
@@ -116,6 +141,16 @@ public class CommandLine {
 								null, JSAP.NOT_REQUIRED, 'q', "score-tree",
 								"score the provided species tree and exit"),
 
+						new FlaggedOption("add trees",
+								FileStringParser.getParser().setMustExist(true),
+								null, JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "add-trees",
+								"With -q, adds the gene trees of each of these files (comma-separated) in turn, and reports the quartet score"+
+								" of the species trees after each of them; only the added gene trees are encoded in the polytree.")
+								.setList(true).setListSeparator(','),
+
+						new Switch("check polytree", JSAP.NO_SHORTFLAG, "check-polytree",
+								"With --add-trees, checks at the end that adding and removing gene trees gives the polytree built from scratch."),
+
 						new FlaggedOption(
 								"branch annotation level",
 								JSAP.INTEGER_PARSER,
@@ -225,7 +260,85 @@ public class CommandLine {
 								null,
 								JSAP.NOT_REQUIRED,
 								JSAP.NO_SHORTFLAG,"placement", "Inserts the new species in the gene trees, whose name is provided with this option,"+
-								" into the input species tree given by -f"),
+								" into the input species tree given by -f. Several species can be given as a comma-separated list or"+
+								" as a file with one species name per line; each one is placed separately in the same run."),
+
+						new FlaggedOption("placement map",
+								FileStringParser.getParser(),
+								null,
+								JSAP.NOT_REQUIRED,
+								JSAP.NO_SHORTFLAG,"placement-map", "With --placement, writes one line per placed species"+
+								" (species name followed by the label of the branch it is attached to) to this file instead of the standard output."),
+
+						new FlaggedOption("placement tree",
+								FileStringParser.getParser(),
+								null,
+								JSAP.NOT_REQUIRED,
+								JSAP.NO_SHORTFLAG,"placement-tree", "With --placement, writes the backbone tree with all placed species"+
+								" grafted onto their branches to this file. Unlabeled internal nodes of the backbone are labeled N1, N2, ... in postorder."),
+
+						new FlaggedOption("jplace",
+								FileStringParser.getParser(),
+								null,
+								JSAP.NOT_REQUIRED,
+								JSAP.NO_SHORTFLAG,"jplace", "With --placement and --no-scoring, writes every candidate branch of each species"+
+								" with its quartet score, normalized score and weight ratio to this file in jplace format."),
+
+						new FlaggedOption("backbone index",
+								FileStringParser.getParser(),
+								null,
+								JSAP.NOT_REQUIRED,
+								JSAP.NO_SHORTFLAG,"backbone-index", "With --placement and --no-scoring, or --server, saves what does not depend on the placed species"+
+								" (taxa, used gene trees, backbone quartet counts and weights) to this file, and loads it in later runs with the same input and backbone."),
+
+						new FlaggedOption("tree cache",
+								FileStringParser.getParser(),
+								null,
+								JSAP.NOT_REQUIRED,
+								JSAP.NO_SHORTFLAG,"tree-cache", "With --placement or --server, keeps a binary copy of the gene trees that have new species"+
+								" in this directory, and reads it instead of the input file in later runs with the same input file and backbone leaves."),
+
+						new FlaggedOption("weight cache size",
+								JSAP.INTEGER_PARSER,
+								"1048576",
+								JSAP.NOT_REQUIRED,
+								JSAP.NO_SHORTFLAG,"weight-cache-size", "Largest number of tripartition weights kept when scoring trees,"+
+								" so that tripartitions seen again (e.g. in other candidate trees) are not recomputed. 0 disables the cache."),
+
+						new FlaggedOption("weight cache policy",
+								JSAP.STRING_PARSER,
+								WeightCache.LRU,
+								JSAP.NOT_REQUIRED,
+								JSAP.NO_SHORTFLAG,"weight-cache-policy", "What the weight cache does when full: '"+WeightCache.LRU+"' replaces"+
+								" the least recently used weights, '"+WeightCache.KEEP+"' keeps the weights it has."),
+
+						new FlaggedOption("weight store",
+								FileStringParser.getParser(),
+								null,
+								JSAP.NOT_REQUIRED,
+								JSAP.NO_SHORTFLAG,"weight-store", "Keeps the tripartition weights computed when scoring trees in a memory-mapped file"+
+								" in this directory, shared by all runs (also at the same time) on the same gene trees and taxa."),
+
+						new FlaggedOption("weight store size",
+								JSAP.INTEGER_PARSER,
+								"4194304",
+								JSAP.NOT_REQUIRED,
+								JSAP.NO_SHORTFLAG,"weight-store-size", "Number of weights a new --weight-store file can hold (32 bytes each)."),
+
+						new FlaggedOption("polytree file",
+								FileStringParser.getParser(),
+								null,
+								JSAP.NOT_REQUIRED,
+								JSAP.NO_SHORTFLAG,"polytree-file", "Saves the polytree built from the gene trees (what weights are computed from) in this directory,"+
+								" and loads it instead of building it in later runs on the same gene trees and taxa."),
+
+						new FlaggedOption("server",
+								JSAP.STRING_PARSER,
+								null,
+								JSAP.NOT_REQUIRED,
+								JSAP.NO_SHORTFLAG,"server", "Runs as a placement server: gene trees (-i) and the backbone tree (-f) are loaded once,"+
+								" and then species names are read one line at a time and answered with the species name, branch label and quartet score."+
+								" Give 'stdin' to read queries from the standard input, or a port number to listen on that port of localhost."),
 						
 						new FlaggedOption("gene repetition",
 								JSAP.INTEGER_PARSER, "1", JSAP.NOT_REQUIRED,
@@ -513,11 +626,46 @@ public class CommandLine {
 			// GlobalMaps.taxonIdentifier.taxonId("0");
 
 			// System.err.println("Main input file: "+config.getFile("input file"));
-			if(config.contains("placement")){
-				readAndPruneInputTrees(mainTrees,
-					readTreeFileAsString(config.getFile("input file"),false), rooted,
-					true, false, minleaves,
-					config.getInt("branch annotation level"), null, config.contains("placement"), extraTrees, placementStr);
+			if(config.contains("placement") || config.contains("server")){
+				if (extraTrees.size() == 0) {
+					exitWithErr("--placement and --server require a backbone species tree given by -f");
+				}
+				Utils.labelInternalNodes(extraTrees.get(0));
+				placementGeneTrees = null;
+				GeneTreeCache cache = null;
+				if (config.getFile("tree cache") != null) {
+					cache = new GeneTreeCache(config.getFile("tree cache"), 
+							config.getFile("input file"), extraTrees.get(0), rooted);
+					placementGeneTrees = cache.read();
+				}
+				if (placementGeneTrees != null) {
+					System.err.println("Gene trees read from cache " + cache.getFile());
+				} else {
+					placementGeneTrees = new ArrayList<Tree>();
+					readPlacementInputTrees(placementGeneTrees,
+						readTreeFileAsString(config.getFile("input file"),false), rooted);
+					if (cache != null) {
+						placementGeneTrees = GeneTreeCache.selectTrees(placementGeneTrees, extraTrees.get(0));
+						try {
+							cache.write(placementGeneTrees);
+							System.err.println("Gene trees with new species cached in " + cache.getFile());
+						} catch (IOException e) {
+							System.err.println("Could not write gene tree cache " + cache.getFile() + ": " + e.getMessage());
+						}
+					}
+				}
+				if (config.contains("placement")) {
+					placementQueries = readPlacementQueries(placementStr, placementGeneTrees, extraTrees.get(0));
+				} else {
+					placementQueries = findNewSpecies(placementGeneTrees, extraTrees.get(0));
+				}
+				if (placementQueries.size() == 0) {
+					exitWithErr("None of the species in the input trees can be placed");
+				}
+				System.err.println(placementQueries.size() + " species to place");
+				placementStr = placementQueries.get(0);
+				pruneInputTrees(mainTrees, placementGeneTrees, minleaves,
+					config.getInt("branch annotation level"), extraTrees, placementStr);
 			}
 			
 			else{
@@ -671,6 +819,28 @@ public class CommandLine {
 		options.setDLbdWeigth(wh);
 		options.setCS(1d);
 		options.setCD(1d);
+		if (config.getInt("weight cache size") < 0) {
+			exitWithErr("--weight-cache-size cannot be negative");
+		}
+		if (!WeightCache.LRU.equals(config.getString("weight cache policy")) &&
+				!WeightCache.KEEP.equals(config.getString("weight cache policy"))) {
+			exitWithErr("--weight-cache-policy should be "+WeightCache.LRU+" or "+WeightCache.KEEP);
+		}
+		options.setWavefront(config.getBoolean("wavefront"));
+		options.setBranchAndBound(config.getBoolean("branch and bound"));
+		if (!PolytreeKernels.isKernel(config.getString("kernel"))) {
+			exitWithErr("--kernel should be "+PolytreeKernels.AUTO+" or one of "+Arrays.toString(PolytreeKernels.NAMES));
+		}
+		if (config.getInt("kernel batch") < 0 || config.getInt("kernel batch") > 1024) {
+			exitWithErr("--kernel-batch should be between 0 and 1024");
+		}
+		options.setKernel(config.getString("kernel"), config.getInt("kernel batch"));
+		options.setWeightCache(config.getInt("weight cache size"), config.getString("weight cache policy"));
+		if (config.getInt("weight store size") < 1 || config.getInt("weight store size") > WeightStore.MAX_SIZE) {
+			exitWithErr("--weight-store-size should be between 1 and "+WeightStore.MAX_SIZE);
+		}
+		options.setWeightStore(config.getFile("weight store"), config.getInt("weight store size"));
+		options.setPolytreeFile(config.getFile("polytree file"));
 
 		return options;
 	}
@@ -756,8 +926,18 @@ public class CommandLine {
 					+ config.getFile("score species trees"));
 			toScore = readTreeFileAsString(config
 					.getFile("score species trees"),false);
-			runScore(criterion, rooted, mainTrees, outbuffer, options,
-					outgroup, toScore);
+			if (config.getFileArray("add trees").length > 0) {
+				runAddTrees(config, criterion, rooted, mainTrees, outbuffer, options, toScore);
+			} else {
+				runScore(criterion, rooted, mainTrees, outbuffer, options,
+						outgroup, toScore);
+			}
+		} else if (config.contains("server")) {
+
+			runServer(config, options, extraTrees);
+		} else if (options.getPlacement()) {
+
+			runPlacements(config, criterion, mainTrees, outbuffer, options, extraTrees);
 		} else {
 
 			runInference(config, criterion, rooted, extrarooted, mainTrees,
@@ -771,6 +951,50 @@ public class CommandLine {
 				+ (System.currentTimeMillis() - startTime) / 1000.0D + " secs");
 	}
 
+	/**
+	 * Scores the -q species trees with the input gene trees, and again after 
+	 * the gene trees of each --add-trees file are added. The polytree is built 
+	 * once; the gene trees added to it are the only ones encoded.
+	 */
+	private static void runAddTrees(JSAPResult config, int criterion, boolean rooted,
+			List<Tree> mainTrees, BufferedWriter outbuffer, Options options,
+			List<String> toScore) throws IOException {
+		if (criterion != 2) {
+			exitWithErr("--add-trees only works with quartet scores");
+		}
+		options.setIncrementalPolytree(true);
+		WQInference inference = new WQInference(options, mainTrees, new ArrayList<Tree>());
+		inference.setupWeightsOnly();
+		List<Tree> speciesTrees = new ArrayList<Tree>();
+		readInputTrees(speciesTrees, toScore, rooted, true, true, null, 1, null);
+		printQuartetScores(inference, speciesTrees, mainTrees.size());
+		for (File file : config.getFileArray("add trees")) {
+			long startTime = System.currentTimeMillis();
+			List<Tree> added = new ArrayList<Tree>();
+			readInputTrees(added, readTreeFileAsString(file, false), rooted,
+					true, false, options.getMinLeaves(), options.getBranchannotation(), null);
+			inference.addGeneTrees(added);
+			System.err.println(added.size() + " gene trees added from " + file + " in "
+					+ (System.currentTimeMillis() - startTime) / 1000.0D + " secs.");
+			printQuartetScores(inference, speciesTrees, mainTrees.size());
+		}
+		if (config.getBoolean("check polytree")) {
+			inference.checkPolytree();
+		}
+		for (Tree tr : speciesTrees) {
+			writeTreeToFile(outbuffer, tr);
+		}
+		outbuffer.close();
+	}
+
+	private static void printQuartetScores(WQInference inference, 
+			List<Tree> speciesTrees, int geneTrees) {
+		for (Tree tr : speciesTrees) {
+			System.err.println("Quartet score with " + geneTrees + " gene trees: " 
+					+ inference.quartetScore(tr));
+		}
+	}
+
 	private static void runScore(int criterion, boolean rooted,
 			List<Tree> mainTrees, BufferedWriter outbuffer, Options options,
 			String outgroup, List<String> toScore)
@@ -919,6 +1143,232 @@ public class CommandLine {
 		outbuffer.close();
 	}
 
+	/**
+	 * Places the --placement species on the backbone tree and, if asked, 
+	 * writes the backbone with all of them grafted on.
+	 */
+	private static void runPlacements(JSAPResult config, int criterion,
+			List<Tree> mainTrees, BufferedWriter outbuffer, Options options,
+			List<Tree> extraTrees) throws IOException {
+
+		BufferedWriter mapbuffer = null;
+		if (config.getFile("placement map") != null) {
+			mapbuffer = new BufferedWriter(new FileWriter(config.getFile("placement map")));
+		}
+		PlacementMerger merger = new PlacementMerger();
+		if (criterion == 2 && options.isScoreTree()) {
+			runPlacementEngine(config, outbuffer, mapbuffer, merger, options, extraTrees);
+		} else {
+			if (config.getFile("jplace") != null) {
+				exitWithErr("--jplace requires --no-scoring");
+			}
+			runSequentialPlacements(criterion, mainTrees, outbuffer, mapbuffer, 
+					merger, options, extraTrees);
+		}
+		if (config.getFile("placement tree") != null) {
+			merger.write(extraTrees.get(0), config.getFile("placement tree"));
+		}
+	}
+
+	/**
+	 * Places each of the --placement species on the backbone tree, one after 
+	 * the other. Input trees are parsed once, and which of them include each 
+	 * species is found in one pass; for each species, only those trees are 
+	 * pruned to the backbone species plus the new species, and the taxon 
+	 * maps are rebuilt. The first species is already set up by readOptions.
+	 */
+	private static void runSequentialPlacements(int criterion, List<Tree> mainTrees,
+			BufferedWriter outbuffer, BufferedWriter mapbuffer, PlacementMerger merger,
+			Options options, List<Tree> extraTrees) throws IOException {
+		boolean batch = placementQueries.size() > 1;
+		Set<String> backboneLeaves = new HashSet<String>(Arrays.asList(extraTrees.get(0).getLeaves()));
+		Map<String, Set<Integer>> treesWith = new HashMap<String, Set<Integer>>();
+		if (batch) {
+			for (String query : placementQueries) {
+				treesWith.put(query, new HashSet<Integer>());
+			}
+			int l = 0;
+			for (Tree src : placementGeneTrees) {
+				l++;
+				for (String leaf : src.getLeaves()) {
+					Set<Integer> with = treesWith.get(leaf);
+					if (with != null) {
+						with.add(l);
+					}
+				}
+			}
+		}
+		for (int i = 0; i < placementQueries.size(); i++) {
+			String query = placementQueries.get(i);
+			List<Tree> trees = mainTrees;
+			if (i > 0) {
+				GlobalMaps.taxonIdentifier = new TaxonIdentifier();
+				trees = new ArrayList<Tree>();
+				pruneInputTrees(trees, placementGeneTrees, treesWith.get(query), options.getMinLeaves(),
+						options.getBranchannotation(), backboneLeaves, query);
+				GlobalMaps.taxonIdentifier.lock();
+				GlobalMaps.taxonNameMap = new TaxonNameMap();
+				for (String leaf : extraTrees.get(0).getLeaves()) {
+					GlobalMaps.taxonIdentifier.taxonId(leaf);
+				}
+				options.setPlacementStr(query);
+			}
+			if (batch) {
+				System.err.println("\n======== Placing " + query + " (" + (i + 1) + 
+						" of " + placementQueries.size() + ")");
+			}
+			String outgroup = GlobalMaps.taxonNameMap.getSpeciesIdMapper()
+					.getSpeciesName(0);
+			String branch = runOnePlacement(criterion, extraTrees, outbuffer,
+					trees, outgroup, options);
+			merger.add(query, branch);
+			String line = batch || mapbuffer != null ? query + " " + branch : branch;
+			if (mapbuffer != null) {
+				mapbuffer.write(line + "\n");
+				mapbuffer.flush();
+			} else {
+				System.out.println(line);
+			}
+		}
+		if (mapbuffer != null) {
+			mapbuffer.close();
+		}
+		outbuffer.close();
+	}
+
+	/**
+	 * Keeps a PlacementEngine over all new species of the input trees in 
+	 * memory and answers placement queries from stdin or a localhost port.
+	 */
+	private static void runServer(JSAPResult config, Options options,
+			List<Tree> extraTrees) throws IOException {
+		String server = config.getString("server");
+		PlacementEngine engine = newPlacementEngine(config, options, extraTrees);
+		System.err.println(placementQueries.size() + " species can be placed.");
+		PlacementServer placementServer = new PlacementServer(engine, placementQueries);
+		if ("stdin".equals(server)) {
+			placementServer.serve(System.in, System.out);
+		} else {
+			int port;
+			try {
+				port = Integer.parseInt(server);
+			} catch (NumberFormatException e) {
+				throw new RuntimeException("--server expects 'stdin' or a port number; got " + server);
+			}
+			placementServer.listen(port);
+		}
+	}
+
+	/**
+	 * Sets up the shared placement engine. The backbone index is loaded 
+	 * from --backbone-index if it was written for the same input, and 
+	 * saved there otherwise. Species that cannot be placed are dropped.
+	 */
+	private static PlacementEngine newPlacementEngine(JSAPResult config,
+			Options options, List<Tree> extraTrees) throws IOException {
+		long startTime = System.currentTimeMillis();
+		File input = config.getFile("input file");
+		File indexFile = config.getFile("backbone index");
+		BackboneIndex index = null;
+		if (indexFile != null) {
+			index = BackboneIndex.load(indexFile, BackboneIndex.key(input, 
+					placementGeneTrees, extraTrees.get(0), options.getMinLeaves()));
+			if (index != null) {
+				System.err.println("Backbone index read from " + indexFile);
+			}
+		}
+		boolean loaded = index != null;
+		if (!loaded) {
+			index = new BackboneIndex(input, placementGeneTrees, extraTrees.get(0), 
+					options.getMinLeaves());
+		}
+		PlacementEngine engine = new PlacementEngine(placementGeneTrees, index, options);
+		if (indexFile != null && !loaded) {
+			index.save(indexFile);
+			System.err.println("Backbone index saved to " + indexFile);
+		}
+		List<String> queries = new ArrayList<String>();
+		for (String query : placementQueries) {
+			if (engine.canPlace(query)) {
+				queries.add(query);
+			} else {
+				System.err.println("Skipping " + query + ": not in any gene tree with enough leaves");
+			}
+		}
+		placementQueries = queries;
+		System.err.println("Placement engine set up in "
+				+ (System.currentTimeMillis() - startTime) / 1000.0D + " secs.");
+		return engine;
+	}
+
+	/**
+	 * Places all --placement species at once with a shared PlacementEngine; 
+	 * species are placed in parallel. Used when the output trees are not scored.
+	 */
+	private static void runPlacementEngine(JSAPResult config, BufferedWriter outbuffer, 
+			BufferedWriter mapbuffer, PlacementMerger merger, Options options, 
+			List<Tree> extraTrees) throws IOException {
+		long startTime = System.currentTimeMillis();
+		PlacementEngine engine = newPlacementEngine(config, options, extraTrees);
+		boolean batch = placementQueries.size() > 1;
+		File jplaceFile = config.getFile("jplace");
+		String outgroup = GlobalMaps.taxonIdentifier.getTaxonName(0);
+		JplaceWriter jplace = jplaceFile == null ? null 
+				: new JplaceWriter(jplaceFile, engine, _version);
+		for (PlacementScorer placement : engine.place(placementQueries)) {
+			if (jplace != null) {
+				jplace.add(placement);
+			}
+			String branch = engine.getBranchLabel(placement.getEdge());
+			System.err.println("The branch that " + placement.getQuery() 
+					+ " is attached to: " + branch + " (quartet score " + placement.getScore() + ")");
+			merger.add(placement.getQuery(), branch);
+			Tree st = engine.buildPlacedTree(placement.getEdge(), placement.getQuery());
+			st.rerootTreeAtNode(st.getNode(outgroup));
+			Trees.removeBinaryNodes((MutableTree) st);
+			writeTreeToFile(outbuffer, st);
+			String line = batch || mapbuffer != null ? placement.getQuery() + " " + branch : branch;
+			if (mapbuffer != null) {
+				mapbuffer.write(line + "\n");
+			} else {
+				System.out.println(line);
+			}
+		}
+		System.err.println("Placed " + placementQueries.size() + " species in "
+				+ (System.currentTimeMillis() - startTime) / 1000.0D + " secs.");
+		if (jplace != null) {
+			jplace.close();
+		}
+		if (mapbuffer != null) {
+			mapbuffer.close();
+		}
+		outbuffer.close();
+	}
+
+	private static String runOnePlacement(int criterion, List<Tree> extraTrees,
+			BufferedWriter outbuffer, List<Tree> input, String outgroup, 
+			Options options) {
+		long startTime = System.currentTimeMillis();
+		
+		for(Tree tr:extraTrees){
+			int label = 1;
+			for(TNode node: tr.postTraverse() ){
+				((STINode) node).setData(""+label);
+				label++;
+			}
+		}
+		AbstractInference inferenceConsumer = initializeInference(criterion, input, extraTrees, options);
+		inferenceConsumer.setup();
+
+		List<Solution> solutions = inferenceConsumer.inferSpeciesTree();
+
+		System.err.println("Placement of " + options.getPlacementStr() + " done in "
+						+ (System.currentTimeMillis() - startTime) / 1000.0D
+						+ " secs.");
+		processSolution(outbuffer, null, outgroup, inferenceConsumer, solutions);
+		return solutions.get(0).getBranchLabel();
+	}
+
 	private static Tree runOnOneInput(int criterion, List<Tree> extraTrees,
 			BufferedWriter outbuffer, List<Tree> input,
 			Iterable<Tree> bootstraps, String outgroup, Options options) {
@@ -1200,24 +1650,74 @@ public class CommandLine {
 	}
 	
 	
-	private static void readAndPruneInputTrees(List<Tree> trees, List<String> lines,
-			boolean rooted, boolean checkCompleteness, boolean stLablel,
-			Integer minleaves, int annotation, String outgroup, boolean placement ,List<Tree> extraSpTtrees, String newSpeciesName)
-			throws FileNotFoundException, IOException {
+	/**
+	 * Reads the species to place. The --placement value is either a file 
+	 * with one species name per line or a comma-separated list of names. 
+	 * Species that are already in the backbone or absent from all input 
+	 * trees are skipped. 
+	 */
+	private static List<String> readPlacementQueries(String placementStr,
+			List<Tree> geneTrees, Tree backbone) throws IOException {
+		List<String> names = new ArrayList<String>();
+		File file = new File(placementStr);
+		if (file.isFile()) {
+			BufferedReader br = new BufferedReader(new FileReader(file));
+			String line;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				if (line.length() != 0) {
+					names.add(line);
+				}
+			}
+			br.close();
+		} else {
+			for (String name : placementStr.split(",")) {
+				name = name.trim();
+				if (name.length() != 0) {
+					names.add(name);
+				}
+			}
+		}
+		Set<String> gtLeaves = new HashSet<String>();
+		for (Tree tr : geneTrees) {
+			gtLeaves.addAll(Arrays.asList(tr.getLeaves()));
+		}
+		Set<String> stLeaves = new HashSet<String>(Arrays.asList(backbone.getLeaves()));
+		List<String> queries = new ArrayList<String>();
+		Set<String> seen = new HashSet<String>();
+		for (String name : names) {
+			if (!seen.add(name)) {
+				continue;
+			}
+			if (stLeaves.contains(name)) {
+				System.err.println("Skipping " + name + ": it is already in the backbone tree");
+			} else if (!gtLeaves.contains(name)) {
+				System.err.println("Skipping " + name + ": it is not in any input tree");
+			} else {
+				queries.add(name);
+			}
+		}
+		return queries;
+	}
 
-//		ArrayList<String> retainedTaxa = new ArrayList<String>();
-	//	List<String> stLeaves = new ArrayList<String>(Arrays.asList(extraSpTtrees.get(0).getLeaves()));
-		Set<String> stLeaves = new HashSet<String>(Arrays.asList(extraSpTtrees.get(0).getLeaves()));
-		stLeaves.add(newSpeciesName);	
-//		List<String> gtLeaves;
-		
-		List<Integer> skipped = new Stack<Integer>();
+	/**
+	 * All species of the input trees that are not in the backbone tree
+	 */
+	private static List<String> findNewSpecies(List<Tree> geneTrees, Tree backbone) {
+		TreeSet<String> names = new TreeSet<String>();
+		for (Tree tr : geneTrees) {
+			names.addAll(Arrays.asList(tr.getLeaves()));
+		}
+		names.removeAll(Arrays.asList(backbone.getLeaves()));
+		return new ArrayList<String>(names);
+	}
+
+	private static void readPlacementInputTrees(List<Tree> trees, List<String> lines,
+			boolean rooted) throws IOException {
 		int l = 0;
 		try {
-			TreeSet<String> allleaves = new TreeSet<String>();
 			for (String line : lines) {
 				l++;
-				Set<String> previousTreeTaxa = new HashSet<String>();
 				if (line.length() == 0) {
 					continue;
 				}
@@ -1225,104 +1725,79 @@ public class CommandLine {
 				if (rooted) {
 					STITree<Double> gt = new STITree<Double>(true);
 					nr.readTree(gt);
-					if (checkCompleteness) {
-						if (previousTreeTaxa.isEmpty()) {
-							previousTreeTaxa.addAll(Arrays.asList(gt
-									.getLeaves()));
-						} else {
-							if (!previousTreeTaxa.containsAll(Arrays.asList(gt
-									.getLeaves()))) {
-								throw new RuntimeException(
-										"Not all trees are on the same set of taxa: "
-												+ gt.getLeaves() + "\n"
-												+ previousTreeTaxa);
-							}
-						}
-					}
-//					if(newSpeciesName.length() == 0){
-//						gtLeaves = new ArrayList<String>(Arrays.asList(gt.getLeaves()));
-//						gtLeaves.removeAll(stLeaves);
-//						newSpeciesName = gtLeaves.get(0);
-//						stLeaves.add(newSpeciesName);							
-//					}
-//					List<String> gtLeaves = new ArrayList<String>(Arrays.asList(gt.getLeaves()));
-					Set<String> gtLeaves = new HashSet<String>(Arrays.asList(gt.getLeaves()));
-					boolean tokeep = true;
-					if(!gtLeaves.contains(newSpeciesName))
-						tokeep = false;
-					gtLeaves.removeAll(stLeaves);
-					if( gtLeaves.size() >= 1){
-						gt.constrainByLeaves(stLeaves);
-//						System.err.println("pruned1");
-					}
-					System.err.println( Runtime.getRuntime().totalMemory());
-					
-					if ((minleaves == null || gt.getLeafCount() >= minleaves) && tokeep ) {
-						
-						trees.add(gt);
-					} else {
-						skipped.add(l);
-					}
+					trees.add(gt);
 				} else {
-					// System.err.println(".");
-					MutableTree tr = nr.readTree();
-//					if(newSpeciesName.length() == 0){
-//						gtLeaves = new ArrayList<String>(Arrays.asList(tr.getLeaves()));
-//						gtLeaves.removeAll(stLeaves);
-//						newSpeciesName = gtLeaves.get(0);
-//						stLeaves.add(newSpeciesName);							
-//					}
-					//List<String> trLeaves = new ArrayList<String>(Arrays.asList(tr.getLeaves()));
-					Set<String> trLeaves = new HashSet<String>(Arrays.asList(tr.getLeaves()));
-					boolean tokeep = true;
-					if(!trLeaves.contains(newSpeciesName))
-						tokeep = false;
-					
-					trLeaves.removeAll(stLeaves);
-					if(trLeaves.size() >= 1){
-						tr.constrainByLeaves(stLeaves);
-//						System.err.println("pruned2");
-					}
-//					System.err.println(tr);
-					if ((minleaves == null || tr.getLeafCount() >= minleaves) && tokeep) {
-						trees.add(tr);
-					} else {
-						skipped.add(l);
-					}
-					if (outgroup != null) {
-						tr.rerootTreeAtNode(tr.getNode(outgroup));
-						Trees.removeBinaryNodes(tr);
-					}
-					if (stLablel) {
-						GlobalMaps.taxonNameMap.getSpeciesIdMapper().stToGt(tr);
-					}
-					String[] leaves = tr.getLeaves().clone();
-					if (annotation != 6) {
-						for (int i = 0; i < leaves.length; i++) {
-							// if (!stLablel) {
-							GlobalMaps.taxonIdentifier.taxonId(leaves[i]);
-							// } else {
-							// GlobalMaps.taxonNameMap.getSpeciesIdMapper().speciesId(leaves[i]);
-							// }
-						}
-					} else {
-						allleaves.addAll(Arrays.asList(leaves));
-					}
-				}
-				if (annotation == 6) {
-					for (String leaf : allleaves) {
-						GlobalMaps.taxonIdentifier.taxonId(leaf);
-					}
+					trees.add(nr.readTree());
 				}
 			}
 		} catch (ParseException e) {
 			throw new RuntimeException("Failed to Parse Tree number: " + l, e);
 		}
+	}
+
+	/**
+	 * Adds to trees a copy of each source tree that includes the new species, 
+	 * pruned down to the backbone species plus the new species. 
+	 */
+	private static void pruneInputTrees(List<Tree> trees, List<Tree> source,
+			Integer minleaves, int annotation, List<Tree> extraSpTtrees, String newSpeciesName) {
+		pruneInputTrees(trees, source, null, minleaves, annotation, 
+				new HashSet<String>(Arrays.asList(extraSpTtrees.get(0).getLeaves())), newSpeciesName);
+	}
+
+	/**
+	 * Same, given the backbone species and the positions (from 1) of the 
+	 * source trees that include the new species (null to look at all trees)
+	 */
+	private static void pruneInputTrees(List<Tree> trees, List<Tree> source, Set<Integer> with,
+			Integer minleaves, int annotation, Set<String> backboneLeaves, String newSpeciesName) {
+
+		Set<String> stLeaves = new HashSet<String>(backboneLeaves);
+		stLeaves.add(newSpeciesName);	
+		
+		List<Integer> skipped = new Stack<Integer>();
+		int l = 0;
+		TreeSet<String> allleaves = new TreeSet<String>();
+		for (Tree src : source) {
+			l++;
+			if (with != null && !with.contains(l)) {
+				skipped.add(l);
+				continue;
+			}
+			Set<String> trLeaves = new HashSet<String>(Arrays.asList(src.getLeaves()));
+			if (!trLeaves.contains(newSpeciesName)) {
+				skipped.add(l);
+				continue;
+			}
+			STITree<Double> tr = new STITree<Double>(src);
+			trLeaves.removeAll(stLeaves);
+			if(trLeaves.size() >= 1){
+				tr.constrainByLeaves(stLeaves);
+			}
+			if (minleaves != null && tr.getLeafCount() < minleaves) {
+				skipped.add(l);
+				continue;
+			}
+			trees.add(tr);
+			String[] leaves = tr.getLeaves().clone();
+			if (annotation != 6) {
+				for (int i = 0; i < leaves.length; i++) {
+					GlobalMaps.taxonIdentifier.taxonId(leaves[i]);
+				}
+			} else {
+				allleaves.addAll(Arrays.asList(leaves));
+			}
+		}
+		if (annotation == 6) {
+			for (String leaf : allleaves) {
+				GlobalMaps.taxonIdentifier.taxonId(leaf);
+			}
+		}
 		if (skipped.size() > 0) {
 			if(minleaves != null){
 			System.err
 					.println("Skipping the following tree(s) because they had less than "
-							+ minleaves + " leaves: \n" + skipped);
+							+ minleaves + " leaves or did not contain new species: \n" + skipped);
 			}
 			else{
 				System.err
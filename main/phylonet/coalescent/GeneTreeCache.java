@@ -0,0 +1,264 @@
+package phylonet.coalescent;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+import phylonet.tree.model.TNode;
+import phylonet.tree.model.Tree;
+import phylonet.tree.model.sti.STINode;
+import phylonet.tree.model.sti.STITree;
+
+/**
+ * On-disk cache of the gene trees used for placement on a given backbone.
+ *
+ * Only gene trees with at least one species missing from the backbone
+ * are kept (no placement uses the others). Trees are stored as topologies
+ * over a taxon table: one int per node in preorder, the taxon id for a
+ * leaf and minus the number of children for an internal node, so that
+ * they can be rebuilt top-down without parsing. The cache file is named
+ * after a hash of the input file (path, size and modification time), the
+ * backbone leaf set and the rooted flag, and is memory-mapped when read.
+ */
+class GeneTreeCache {
+
+	private static final int MAGIC = 0x47544331;
+	/* Largest part of the cache mapped at once */
+	private static final int WINDOW = 1 << 30;
+
+	private File file;
+	private String key;
+
+	GeneTreeCache(File dir, File input, Tree backbone, boolean rooted) {
+		String[] leaves = backbone.getLeaves().clone();
+		Arrays.sort(leaves);
+		StringBuilder sb = new StringBuilder();
+		sb.append(input.getAbsolutePath()).append('\n')
+			.append(input.length()).append('\n')
+			.append(input.lastModified()).append('\n')
+			.append(rooted).append('\n');
+		for (String leaf : leaves) {
+			sb.append(leaf).append('\n');
+		}
+		this.key = digest(sb.toString());
+		this.file = new File(dir, input.getName() + "." + key + ".gtc");
+	}
+
+	static String digest(String s) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			StringBuilder hex = new StringBuilder();
+			for (byte b : md.digest(s.getBytes("UTF-8"))) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gene trees that have at least one species not in the backbone
+	 */
+	static List<Tree> selectTrees(List<Tree> trees, Tree backbone) {
+		Set<String> bbLeaves = new HashSet<String>(Arrays.asList(backbone.getLeaves()));
+		List<Tree> ret = new ArrayList<Tree>();
+		for (Tree tr : trees) {
+			for (String leaf : tr.getLeaves()) {
+				if (!bbLeaves.contains(leaf)) {
+					ret.add(tr);
+					break;
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads the cached trees, or returns null if there is no cache
+	 */
+	List<Tree> read() throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			Reader in = new Reader(raf.getChannel());
+			if (in.readInt() != MAGIC || !key.equals(in.readString())) {
+				System.err.println("Ignoring gene tree cache " + file + " written for other input");
+				return null;
+			}
+			int taxa = in.readInt();
+			String[] names = new String[taxa];
+			for (int i = 0; i < taxa; i++) {
+				names[i] = in.readString();
+			}
+			int count = in.readInt();
+			List<Tree> trees = new ArrayList<Tree>(count);
+			for (int t = 0; t < count; t++) {
+				trees.add(in.readTree(names));
+			}
+			return trees;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the given trees to the cache. A temporary file is renamed
+	 * at the end, so an interrupted run never leaves a partial cache.
+	 */
+	void write(List<Tree> trees) throws IOException {
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		List<String> names = new ArrayList<String>();
+		for (Tree tr : trees) {
+			for (String leaf : tr.getLeaves()) {
+				if (!ids.containsKey(leaf)) {
+					ids.put(leaf, names.size());
+					names.add(leaf);
+				}
+			}
+		}
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 16));
+		out.writeInt(MAGIC);
+		writeString(out, key);
+		out.writeInt(names.size());
+		for (String name : names) {
+			writeString(out, name);
+		}
+		out.writeInt(trees.size());
+		for (Tree tr : trees) {
+			out.writeByte(tr.isRooted() ? 1 : 0);
+			out.writeInt(tr.getNodeCount());
+			Stack<TNode> stack = new Stack<TNode>();
+			stack.push(tr.getRoot());
+			while (!stack.isEmpty()) {
+				TNode node = stack.pop();
+				if (node.isLeaf()) {
+					out.writeInt(ids.get(node.getName()));
+				} else {
+					out.writeInt(-node.getChildCount());
+					List<TNode> children = new ArrayList<TNode>();
+					for (TNode child : node.getChildren()) {
+						children.add(child);
+					}
+					for (int i = children.size() - 1; i >= 0; i--) {
+						stack.push(children.get(i));
+					}
+				}
+			}
+		}
+		out.close();
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not write gene tree cache " + file);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Sequential reads over a memory-mapped file, remapping a window
+	 * of at most {@link #WINDOW} bytes as needed.
+	 */
+	private static class Reader {
+		private FileChannel channel;
+		private MappedByteBuffer buffer;
+		private long start = 0;
+
+		Reader(FileChannel channel) throws IOException {
+			this.channel = channel;
+			map(0);
+		}
+
+		private void map(long position) throws IOException {
+			start = position;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+					Math.min(WINDOW, channel.size() - position));
+		}
+
+		private void ensure(long bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				map(start + buffer.position());
+				if (buffer.remaining() < bytes) {
+					throw new IOException("Truncated gene tree cache");
+				}
+			}
+		}
+
+		int readInt() throws IOException {
+			ensure(4);
+			return buffer.getInt();
+		}
+
+		String readString() throws IOException {
+			int length = readInt();
+			ensure(length);
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			return new String(bytes, "UTF-8");
+		}
+
+		Tree readTree(String[] names) throws IOException {
+			ensure(5);
+			boolean rooted = buffer.get() == 1;
+			int nodes = buffer.getInt();
+			ensure(4l * nodes);
+			STITree<Double> tree = new STITree<Double>(rooted);
+			Stack<STINode<Double>> parents = new Stack<STINode<Double>>();
+			Stack<Integer> remaining = new Stack<Integer>();
+			for (int i = 0; i < nodes; i++) {
+				int code = buffer.getInt();
+				STINode<Double> node;
+				if (i == 0) {
+					node = tree.getRoot();
+					if (code >= 0) {
+						node.setName(names[code]);
+					}
+				} else {
+					STINode<Double> parent = parents.peek();
+					node = code >= 0 ? parent.createChild(names[code]) : parent.createChild();
+					int left = remaining.pop() - 1;
+					if (left == 0) {
+						parents.pop();
+					} else {
+						remaining.push(left);
+					}
+				}
+				if (code < 0) {
+					parents.push(node);
+					remaining.push(-code);
+				}
+			}
+			return tree;
+		}
+	}
+}
@@ -2,6 +2,7 @@ package phylonet.coalescent;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
 
 import phylonet.tree.model.sti.STITreeCluster;
@@ -87,6 +88,22 @@ public class HashClusterCollection extends AbstractClusterCollection {
 	
 
 	
+	/**
+	 * Resolutions of v, found on the calling thread (for callers that
+	 * are already parallel)
+	 */
+	List<VertexPair> getClusterResolutionsInline(Vertex v) {
+		int size = v.getCluster().getClusterSize();
+		List<VertexPair> ret = new ArrayList<VertexPair>();
+		for (int i = 1; i <= size / 2; i++) {
+			List<VertexPair> partial = new hashClusterResolutionsLoop(i, v, size).call();
+			if (partial != null) {
+				ret.addAll(partial);
+			}
+		}
+		return ret;
+	}
+
 	public IClusterCollection getContainedClusters(Vertex v) {
 		STITreeCluster cluster = v.getCluster();
 		int size = cluster.getClusterSize();
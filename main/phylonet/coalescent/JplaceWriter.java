@@ -0,0 +1,124 @@
+package phylonet.coalescent;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import phylonet.tree.model.TMutableNode;
+import phylonet.tree.model.TNode;
+import phylonet.tree.model.Tree;
+
+/**
+ * Writes placements in the jplace format (version 3), listing every
+ * backbone branch for each query with its quartet score.
+ *
+ * Edge numbers are the postorder ids of the vertices below the branches,
+ * as used by {@link PlacementEngine}. The normalized score divides the
+ * quartet score by the number of quartets in the gene trees restricted
+ * to the backbone plus the query. The like_weight_ratio is a softmax of
+ * the quartet scores, in units of the average number of quartets that
+ * include the query in one gene tree: a branch that loses one gene
+ * tree's worth of quartets gets e times less weight.
+ */
+class JplaceWriter {
+
+	private BufferedWriter out;
+	private PlacementEngine engine;
+	private boolean first = true;
+
+	JplaceWriter(File file, PlacementEngine engine, String version) throws IOException {
+		this.engine = engine;
+		this.out = new BufferedWriter(new FileWriter(file));
+		out.write("{\n\t\"version\": 3,\n\t\"metadata\": {\"software\": \"ASTRAL "
+				+ version + " placement\"},\n\t\"fields\": [\"edge_num\", \"like_weight_ratio\","
+				+ " \"quartet_score\", \"normalized_score\"],\n\t\"tree\": \"");
+		StringBuilder sb = new StringBuilder();
+		Map<TNode, Integer> ids = new IdentityHashMap<TNode, Integer>();
+		int id = 0;
+		for (TNode node : engine.getBackbone().postTraverse()) {
+			ids.put(node, id++);
+		}
+		writeNode(engine.getBackbone().getRoot(), ids, sb);
+		sb.append(';');
+		out.write(escape(sb.toString()));
+		out.write("\",\n\t\"placements\": [");
+	}
+
+	private static void writeNode(TNode node, Map<TNode, Integer> ids, StringBuilder sb) {
+		if (!node.isLeaf()) {
+			sb.append('(');
+			boolean firstChild = true;
+			for (TNode child : node.getChildren()) {
+				if (!firstChild) {
+					sb.append(',');
+				}
+				writeNode(child, ids, sb);
+				firstChild = false;
+			}
+			sb.append(')');
+		}
+		sb.append(node.getName());
+		if (!node.isRoot()) {
+			if (node.getParentDistance() != TMutableNode.NO_DISTANCE) {
+				sb.append(':').append(node.getParentDistance());
+			}
+			sb.append('{').append(ids.get(node)).append('}');
+		}
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * Writes all candidate branches of one query, best first
+	 */
+	synchronized void add(final PlacementScorer placement) throws IOException {
+		String query = placement.getQuery();
+		int size = engine.clusters.length;
+		Integer[] edges = new Integer[size];
+		int count = 0;
+		for (int v = 0; v < size; v++) {
+			if (placement.getScore(v) != -1) {
+				edges[count++] = v;
+			}
+		}
+		edges = Arrays.copyOf(edges, count);
+		Arrays.sort(edges, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int c = Long.compare(placement.getScore(b), placement.getScore(a));
+				return c != 0 ? c : a.compareTo(b);
+			}
+		});
+
+		long best = placement.getScore();
+		double scale = Math.max(engine.getQuartetsPerTree(query), 1);
+		double total = 0;
+		double[] lwr = new double[count];
+		for (int i = 0; i < count; i++) {
+			lwr[i] = Math.exp((placement.getScore(edges[i]) - best) / scale);
+			total += lwr[i];
+		}
+		double max = engine.getMaxPossible(query);
+
+		out.write(first ? "\n" : ",\n");
+		first = false;
+		out.write("\t\t{\"n\": [\"" + escape(query) + "\"], \"p\": [");
+		for (int i = 0; i < count; i++) {
+			long score = placement.getScore(edges[i]);
+			out.write((i == 0 ? "" : ", ") + "[" + edges[i] + ", " + (lwr[i] / total)
+					+ ", " + score + ", " + (max == 0 ? 0 : score / max) + "]");
+		}
+		out.write("]}");
+	}
+
+	void close() throws IOException {
+		out.write("\n\t]\n}\n");
+		out.close();
+	}
+}
@@ -0,0 +1,54 @@
+package phylonet.coalescent;
+
+import java.util.Arrays;
+
+import phylonet.coalescent.Polytree.PTNative;
+
+/**
+ * Scores tripartitions with the native AVX code of the Astral library,
+ * given the tripartitions of one batch in a single call.
+ */
+class NativePolytreeKernel extends PolytreeKernel {
+
+	private static boolean loaded = false;
+
+	/**
+	 * Loads the library and gives it the polytree; throws an error
+	 * (usually UnsatisfiedLinkError) if the library cannot be used
+	 * @param trees the leaves of each gene tree
+	 */
+	static synchronized void load(PolytreeKernel polytree, long[][] trees) {
+		if (!loaded) {
+			System.loadLibrary("Astral");
+			loaded = true;
+		}
+		PTNative.cppInit(polytree.taxa, polytree.listSize, polytree.queue, trees);
+	}
+
+	NativePolytreeKernel(PolytreeKernel polytree, int lanes) {
+		super(polytree, lanes);
+	}
+
+	@Override
+	String name() {
+		return PolytreeKernels.NATIVE;
+	}
+
+	@Override
+	long scratchBytes() {
+		return 0;
+	}
+
+	@Override
+	void weights(long[][] b0, long[][] b1, long[][] b2, long[] weights, int from, int count) {
+		/* The native code computes as many weights as there are results */
+		if (from == 0 && count == weights.length) {
+			PTNative.cppBatchCompute(weights, b0, b1, b2);
+			return;
+		}
+		long[] result = new long[count];
+		PTNative.cppBatchCompute(result, Arrays.copyOfRange(b0, from, from + count),
+				Arrays.copyOfRange(b1, from, from + count), Arrays.copyOfRange(b2, from, from + count));
+		System.arraycopy(result, 0, weights, from, count);
+	}
+}
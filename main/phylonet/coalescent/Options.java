@@ -1,5 +1,7 @@
 package phylonet.coalescent;
 
+import java.io.File;
+
 public class Options {
 	private boolean rooted;
 	private boolean extrarooted;
@@ -28,6 +30,17 @@ public class Options {
 	
 	private boolean ustarDist;
 
+	private int weightCacheSize = 0;
+	private String weightCachePolicy = WeightCache.LRU;
+	private File weightStore = null;
+	private int weightStoreSize;
+	private File polytreeFile = null;
+	private boolean incrementalPolytree = false;
+	private boolean wavefront = false;
+	private boolean branchAndBound = false;
+	private String kernel = PolytreeKernels.AUTO;
+	private int kernelBatch = 0;
+
 	public Options(boolean rooted, boolean extrarooted, 
 			boolean exactSolution, boolean duploss, int alg, int addExtra,
 			boolean outputCompletedGenes, boolean outSearch, boolean run,
@@ -237,6 +250,106 @@ public class Options {
 		return placement;
 	}
 
+	public void setPlacementStr(String placement) {
+		this.placement = placement;
+	}
+
+	/**
+	 * Largest number of tripartition weights kept between calls; 0 keeps none.
+	 */
+	public int getWeightCacheSize() {
+		return weightCacheSize;
+	}
+
+	public String getWeightCachePolicy() {
+		return weightCachePolicy;
+	}
+
+	public void setWeightCache(int size, String policy) {
+		this.weightCacheSize = size;
+		this.weightCachePolicy = policy;
+	}
+
+	/**
+	 * Directory of the on-disk weight stores; null if not used.
+	 */
+	public File getWeightStore() {
+		return weightStore;
+	}
+
+	public int getWeightStoreSize() {
+		return weightStoreSize;
+	}
+
+	public void setWeightStore(File dir, int size) {
+		this.weightStore = dir;
+		this.weightStoreSize = size;
+	}
+
+	/**
+	 * Directory of the saved polytrees; null if not used.
+	 */
+	public File getPolytreeFile() {
+		return polytreeFile;
+	}
+
+	public void setPolytreeFile(File dir) {
+		this.polytreeFile = dir;
+	}
+
+	/**
+	 * Whether the polytree is built so that gene trees can be added and
+	 * removed later (see {@link Polytree#addTree}).
+	 */
+	public boolean isIncrementalPolytree() {
+		return incrementalPolytree;
+	}
+
+	public void setIncrementalPolytree(boolean incrementalPolytree) {
+		this.incrementalPolytree = incrementalPolytree;
+	}
+
+	/**
+	 * Whether the DP (without GPUs) goes level by level over cluster sizes.
+	 */
+	public boolean isWavefront() {
+		return wavefront;
+	}
+
+	public void setWavefront(boolean wavefront) {
+		this.wavefront = wavefront;
+	}
+
+	/**
+	 * Whether the wavefront DP skips resolutions by their upper bounds.
+	 */
+	public boolean isBranchAndBound() {
+		return branchAndBound;
+	}
+
+	public void setBranchAndBound(boolean branchAndBound) {
+		this.branchAndBound = branchAndBound;
+	}
+
+	/**
+	 * The kernel used for tripartition weights; "auto" picks the fastest.
+	 */
+	public String getKernel() {
+		return kernel;
+	}
+
+	/**
+	 * Number of tripartitions the kernel scores at once; 0 picks the fastest.
+	 */
+	public int getKernelBatch() {
+		return kernelBatch;
+	}
+
+	public void setKernel(String kernel, int batch) {
+		this.kernel = kernel;
+		this.kernelBatch = batch;
+	}
+
 	public boolean isScoreTree() {
 		return scoreTree;
 	}
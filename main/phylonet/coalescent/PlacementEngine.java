@@ -0,0 +1,382 @@
+package phylonet.coalescent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import phylonet.tree.model.TNode;
+import phylonet.tree.model.Tree;
+import phylonet.tree.model.sti.STINode;
+import phylonet.tree.model.sti.STITree;
+import phylonet.tree.model.sti.STITreeCluster;
+import phylonet.util.BitSet;
+
+/**
+ * Places many new species on a fixed backbone tree in one go.
+ *
+ * Everything that does not depend on the query is built once and shared
+ * (read-only) by all queries: the {@link BackboneIndex}, the gene trees
+ * themselves (not pruned), and the backbone clusters and their
+ * complements indexed by vertex id (postorder). A score is the saved
+ * backbone weight plus the gene tree quartets that involve the query;
+ * the polytree is only built when tripartition weights are needed, to
+ * complete a new index.
+ * The scoring state of each query lives in its own {@link PlacementScorer}, so
+ * queries can be placed in parallel.
+ *
+ * Quartets of a tripartition only involve taxa in its three sides, and
+ * the sides built for a query only hold backbone species and the query.
+ * This masks out all other species of the gene trees, so the weights are
+ * those of gene trees pruned to the backbone plus the query.
+ */
+public class PlacementEngine {
+
+	private Tree backbone;
+	private Options options;
+	private List<Tree> trees;
+	private WQInference inference;
+
+	/**
+	 * Backbone vertices, indexed by their postorder position
+	 */
+	STITreeCluster[] clusters;
+	int[][] children;
+	int[] parent;
+	String[] labels;
+	int root;
+	/**
+	 * All backbone species
+	 */
+	BitSet backboneAll;
+
+	/**
+	 * All backbone species but the ones below each vertex
+	 */
+	BitSet[] complements;
+
+	/*
+	 * Vertex of each backbone species, by taxon id
+	 */
+	int[] leafVertex;
+
+	/*
+	 * Lowest vertex id below each vertex (the vertices below v are those
+	 * from first[v] to v), and the ancestors 2^j levels above each vertex
+	 */
+	private int[] first;
+	private int[][] ancestors;
+
+	/*
+	 * Gene trees as used by the scorer, and for each new species (by
+	 * taxon id) the gene trees that have it
+	 */
+	PlacementGeneTree[] geneTrees;
+	private int[][] treesWith;
+	int maxNodes;
+
+	/*
+	 * Sum of the backbone tripartition weights: the part of every score
+	 * that does not involve the query
+	 */
+	long backboneWeight;
+
+	private BackboneIndex index;
+
+	/**
+	 * Sets up placement on the backbone of the given index, which is
+	 * completed (backbone tripartition weights) if it was just built.
+	 */
+	public PlacementEngine(List<Tree> geneTrees, BackboneIndex index, Options options) {
+		this.index = index;
+		this.backbone = index.backbone;
+		this.options = options;
+
+		GlobalMaps.taxonIdentifier = new TaxonIdentifier();
+		for (String taxon : index.taxa) {
+			GlobalMaps.taxonIdentifier.taxonId(taxon);
+		}
+
+		trees = new ArrayList<Tree>();
+		for (int t : index.selected) {
+			trees.add(new STITree<Double>(geneTrees.get(t)));
+		}
+		System.err.println(trees.size() + " trees include at least one new species");
+		if (trees.size() == 0) {
+			throw new RuntimeException("No input tree has any of the new species");
+		}
+
+		GlobalMaps.taxonIdentifier.lock();
+		GlobalMaps.taxonNameMap = new TaxonNameMap();
+
+		indexBackbone();
+		indexGeneTrees(trees);
+		if (index.backboneWeights == null) {
+			computeBackboneWeights();
+		}
+		for (long w : index.backboneWeights) {
+			backboneWeight += w;
+		}
+		System.err.println("Quartet score of the backbone tree: " + backboneWeight / 4l);
+	}
+
+	private void computeBackboneWeights() {
+		int size = clusters.length;
+		List<Tripartition> trips = new ArrayList<Tripartition>();
+		List<Integer> vertices = new ArrayList<Integer>();
+		for (int v = 0; v < size; v++) {
+			int[] ch = children[v];
+			if (ch.length == 2 && v != root) {
+				trips.add(new Tripartition(clusters[ch[0]], clusters[ch[1]],
+						GlobalMaps.taxonIdentifier.newCluster((BitSet) complements[v].clone())));
+				vertices.add(v);
+			} else if (ch.length == 3) {
+				trips.add(new Tripartition(clusters[ch[0]], clusters[ch[1]], clusters[ch[2]]));
+				vertices.add(v);
+			}
+		}
+		Long[] ws = calculateWeights(trips.toArray(new Tripartition[trips.size()]));
+		index.backboneWeights = new long[size];
+		for (int i = 0; i < ws.length; i++) {
+			index.backboneWeights[vertices.get(i)] = ws[i];
+		}
+	}
+
+	private void indexGeneTrees(List<Tree> trees) {
+		geneTrees = new PlacementGeneTree[trees.size()];
+		int[] count = new int[GlobalMaps.taxonIdentifier.taxonCount()];
+		for (int t = 0; t < geneTrees.length; t++) {
+			geneTrees[t] = new PlacementGeneTree(trees.get(t), this);
+			maxNodes = Math.max(maxNodes, geneTrees[t].getNodeCount());
+			for (int species : geneTrees[t].newSpecies) {
+				count[species]++;
+			}
+		}
+		treesWith = new int[count.length][];
+		for (int species = 0; species < count.length; species++) {
+			treesWith[species] = new int[count[species]];
+			count[species] = 0;
+		}
+		for (int t = 0; t < geneTrees.length; t++) {
+			for (int species : geneTrees[t].newSpecies) {
+				treesWith[species][count[species]++] = t;
+			}
+		}
+	}
+
+	/**
+	 * The gene trees (positions in geneTrees) that have the given species
+	 */
+	int[] treesWith(int species) {
+		return treesWith[species];
+	}
+
+	/**
+	 * Whether vertex u is v or below it
+	 */
+	boolean isBelow(int u, int v) {
+		return first[v] <= u && u <= v;
+	}
+
+	/**
+	 * The lowest vertex that has both u and v below it
+	 */
+	int meet(int u, int v) {
+		if (isBelow(v, u)) {
+			return u;
+		}
+		int x = u;
+		for (int j = ancestors.length - 1; j >= 0; j--) {
+			if (!isBelow(v, ancestors[j][x])) {
+				x = ancestors[j][x];
+			}
+		}
+		return parent[x];
+	}
+
+	/**
+	 * Position among the children of v of the child that has u below it
+	 */
+	int sideOf(int v, int u) {
+		int[] ch = children[v];
+		for (int i = 0; i < ch.length; i++) {
+			if (isBelow(u, ch[i])) {
+				return i;
+			}
+		}
+		throw new RuntimeException("Vertex " + u + " is not below " + v);
+	}
+
+	BackboneIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Whether the species is in some gene tree used for placement
+	 */
+	public boolean canPlace(String species) {
+		return index.speciesQuartets.containsKey(species);
+	}
+
+	private void indexBackbone() {
+		int n = GlobalMaps.taxonIdentifier.taxonCount();
+		int size = backbone.getNodeCount();
+		clusters = new STITreeCluster[size];
+		children = new int[size][];
+		parent = new int[size];
+		labels = new String[size];
+		leafVertex = new int[backbone.getLeafCount()];
+		backboneAll = new BitSet(n);
+
+		first = new int[size];
+		ArrayList<Integer> stack = new ArrayList<Integer>();
+		int id = 0;
+		for (TNode node : backbone.postTraverse()) {
+			STITreeCluster cluster = GlobalMaps.taxonIdentifier.newCluster();
+			if (node.isLeaf()) {
+				int taxon = GlobalMaps.taxonIdentifier.taxonId(node.getName());
+				cluster.addLeaf(taxon);
+				leafVertex[taxon] = id;
+				children[id] = new int[0];
+			} else {
+				int k = node.getChildCount();
+				children[id] = new int[k];
+				for (int i = k - 1; i >= 0; i--) {
+					int child = stack.remove(stack.size() - 1);
+					children[id][i] = child;
+					parent[child] = id;
+					cluster.getBitSet().or(clusters[child].getBitSet());
+				}
+				if (k != 2 && !(node.isRoot() && k == 3)) {
+					throw new RuntimeException("Placement needs a fully resolved backbone tree; found a node with "
+							+ k + " children");
+				}
+			}
+			first[id] = children[id].length == 0 ? id : first[children[id][0]];
+			clusters[id] = cluster;
+			labels[id] = node.getName();
+			stack.add(id);
+			id++;
+		}
+		root = id - 1;
+		parent[root] = -1;
+		int levels = 1;
+		while ((1 << levels) < size) {
+			levels++;
+		}
+		ancestors = new int[levels][size];
+		for (int v = 0; v < size; v++) {
+			ancestors[0][v] = v == root ? root : parent[v];
+		}
+		for (int j = 1; j < levels; j++) {
+			for (int v = 0; v < size; v++) {
+				ancestors[j][v] = ancestors[j - 1][ancestors[j - 1][v]];
+			}
+		}
+		backboneAll.or(clusters[root].getBitSet());
+		complements = new BitSet[size];
+		for (int v = 0; v < size; v++) {
+			complements[v] = (BitSet) backboneAll.clone();
+			complements[v].andNot(clusters[v].getBitSet());
+		}
+	}
+
+	/**
+	 * Places all queries, in parallel using the threading pool.
+	 * Results are returned in the order of the queries.
+	 */
+	public List<PlacementScorer> place(List<String> queries) {
+		List<Future<PlacementScorer>> futures = new ArrayList<Future<PlacementScorer>>();
+		for (String query : queries) {
+			futures.add(Threading.submit(new PlacementScorer(this, query)));
+		}
+		List<PlacementScorer> ret = new ArrayList<PlacementScorer>();
+		for (Future<PlacementScorer> f : futures) {
+			try {
+				ret.add(f.get());
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+				throw new RuntimeException(e);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Tripartition weights, from the polytree of the gene trees (built on
+	 * first use)
+	 */
+	Long[] calculateWeights(Tripartition[] trips) {
+		WQInference inference;
+		synchronized (this) {
+			if (this.inference == null) {
+				List<Tree> extraTrees = new ArrayList<Tree>();
+				extraTrees.add(backbone);
+				this.inference = new WQInference(options, trees, extraTrees);
+				this.inference.setupWeightsOnly();
+			}
+			inference = this.inference;
+		}
+		return inference.calculateWeights(trips);
+	}
+
+	Tree getBackbone() {
+		return backbone;
+	}
+
+	/**
+	 * Upper bound on the quartet score of the backbone with the query
+	 * attached: the number of quartets of the gene trees restricted to
+	 * the backbone species plus the query.
+	 */
+	long getMaxPossible(String query) {
+		long[] q = index.speciesQuartets.get(query);
+		return index.backboneQuartets + (q == null ? 0 : q[0]);
+	}
+
+	/**
+	 * Average number of quartets including the query in the gene trees
+	 * that have it
+	 */
+	double getQuartetsPerTree(String query) {
+		long[] q = index.speciesQuartets.get(query);
+		return q == null || q[1] == 0 ? 0 : (double) q[0] / q[1];
+	}
+
+	/**
+	 * Label of the backbone branch above the given vertex
+	 */
+	String getBranchLabel(int vertex) {
+		return labels[vertex];
+	}
+
+	/**
+	 * Builds a copy of the backbone with the query attached to the
+	 * branch above the given vertex.
+	 */
+	Tree buildPlacedTree(int vertex, String query) {
+		STITree<Double> tree = new STITree<Double>(backbone);
+		int id = 0;
+		STINode<Double> lower = null;
+		for (TNode node : tree.postTraverse()) {
+			if (id++ == vertex) {
+				lower = (STINode<Double>) node;
+				break;
+			}
+		}
+		STINode<Double> upper = lower.getParent();
+		STINode<Double> attach = upper.createChild();
+		attach.adoptChild(lower);
+		attach.createChild(query);
+		for (TNode node : tree.postTraverse()) {
+			((STINode<Double>) node).setData(null);
+			if (!node.isLeaf()) {
+				((STINode<Double>) node).setName(STITree.NO_NAME);
+			}
+		}
+		return tree;
+	}
+}
@@ -0,0 +1,456 @@
+package phylonet.coalescent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import phylonet.tree.model.TNode;
+import phylonet.tree.model.Tree;
+
+/**
+ * A gene tree as used by {@link PlacementScorer}: its nodes as an
+ * undirected adjacency list, so that it can be rooted at any query, and
+ * the backbone restricted to its backbone species.
+ *
+ * A quartet of the gene tree made of a query q and three backbone
+ * species has a median in the backbone: the vertex where the paths
+ * between the three species meet. With q on a branch, the quartet is
+ * resolved with q next to the species on the side of the median that
+ * holds the branch. {@link #countQuartets} adds, for every median and
+ * each of its three sides, the quartets of the gene tree resolved with
+ * q next to that side. With the gene tree rooted at q, these are its
+ * rooted triplets with one species on each side, by their outgroup.
+ *
+ * The restricted backbone is visited smaller children first, keeping
+ * the species of the largest child marked in the gene tree; the triplets
+ * of a vertex are found by walking up the gene tree from each species of
+ * its smaller child. A gene tree with m backbone species thus takes
+ * O(m log m) walks up the gene tree.
+ */
+class PlacementGeneTree {
+
+	/*
+	 * Gene tree nodes, as adjacency lists
+	 */
+	private int nodes;
+	private int[] adjacentFrom;
+	private int[] adjacent;
+	/*
+	 * Backbone vertex of each node that is a backbone species, -1 otherwise
+	 */
+	private int[] leafVertex;
+	/*
+	 * Species not in the backbone, and their nodes
+	 */
+	int[] newSpecies;
+	private int[] newSpeciesNode;
+
+	/*
+	 * The backbone restricted to the backbone species of the gene tree,
+	 * in the order it is visited (children before parents, the largest
+	 * child last). Each vertex has its backbone vertex, its range of
+	 * species (gene tree nodes, in backbone order), and for a vertex that
+	 * is not a species: its largest child and its other children, each
+	 * with its side (child position) in the backbone vertex, and the side
+	 * of the rest of the species. Only vertices with species on all three
+	 * sides are counted.
+	 */
+	private int[] vertex;
+	private int[] from;
+	private int[] to;
+	private int[] species;
+	private int[] largest;
+	private int[] smaller;
+	private int[] other;
+	private int[] largestSide;
+	private int[] smallerSide;
+	private int[] restSide;
+	private boolean[] counted;
+	/*
+	 * Whether the vertex is not the largest child of its parent
+	 */
+	private boolean[] small;
+
+	PlacementGeneTree(Tree tree, PlacementEngine engine) {
+		int backboneSpecies = engine.leafVertex.length;
+		/* getNodeCount() can be stale on pruned trees */
+		nodes = 0;
+		for (TNode node : tree.postTraverse()) {
+			nodes++;
+		}
+		leafVertex = new int[nodes];
+		int[] parent = new int[nodes];
+		List<Integer> stack = new ArrayList<Integer>();
+		List<Integer> speciesList = new ArrayList<Integer>();
+		List<Integer> nodeList = new ArrayList<Integer>();
+		List<Long> backboneLeaves = new ArrayList<Long>();
+		int id = 0;
+		for (TNode node : tree.postTraverse()) {
+			leafVertex[id] = -1;
+			if (node.isLeaf()) {
+				int taxon = GlobalMaps.taxonIdentifier.taxonId(node.getName());
+				if (taxon < backboneSpecies) {
+					leafVertex[id] = engine.leafVertex[taxon];
+					backboneLeaves.add(((long) leafVertex[id] << 32) | id);
+				} else {
+					speciesList.add(taxon);
+					nodeList.add(id);
+				}
+			} else {
+				for (int i = 0; i < node.getChildCount(); i++) {
+					parent[stack.remove(stack.size() - 1)] = id;
+				}
+			}
+			stack.add(id);
+			id++;
+		}
+		parent[nodes - 1] = -1;
+		newSpecies = toArray(speciesList);
+		newSpeciesNode = toArray(nodeList);
+
+		adjacentFrom = new int[nodes + 1];
+		for (int v = 0; v < nodes - 1; v++) {
+			adjacentFrom[v + 1]++;
+			adjacentFrom[parent[v] + 1]++;
+		}
+		for (int v = 0; v < nodes; v++) {
+			adjacentFrom[v + 1] += adjacentFrom[v];
+		}
+		adjacent = new int[2 * (nodes - 1)];
+		int[] fill = Arrays.copyOf(adjacentFrom, nodes);
+		for (int v = 0; v < nodes - 1; v++) {
+			adjacent[fill[v]++] = parent[v];
+			adjacent[fill[parent[v]]++] = v;
+		}
+
+		restrictBackbone(engine, backboneLeaves);
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] ret = new int[list.size()];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = list.get(i);
+		}
+		return ret;
+	}
+
+	/*
+	 * Builds the restricted backbone from the species sorted in backbone
+	 * (postorder) order: its vertices are the species and the meeting
+	 * points of consecutive species.
+	 */
+	private void restrictBackbone(PlacementEngine engine, List<Long> backboneLeaves) {
+		long[] sorted = new long[backboneLeaves.size()];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = backboneLeaves.get(i);
+		}
+		Arrays.sort(sorted);
+		int m = sorted.length;
+		species = new int[m];
+		int[] keys = new int[2 * m];
+		for (int i = 0; i < m; i++) {
+			species[i] = (int) sorted[i];
+			keys[i] = (int) (sorted[i] >>> 32);
+			if (i > 0) {
+				keys[m + i] = engine.meet(keys[i - 1], keys[i]);
+			}
+		}
+		keys[m] = keys[0];
+		Arrays.sort(keys);
+		int count = 0;
+		int[] unique = new int[keys.length];
+		for (int i = keys.length - 1; i >= 0; i--) {
+			if (count == 0 || keys[i] != unique[count - 1]) {
+				unique[count++] = keys[i];
+			}
+		}
+		keys = unique;
+
+		/* Backbone vertices by decreasing postorder id: parents come first */
+		int[] up = new int[count];
+		int[] lo = new int[count];
+		int[] hi = new int[count];
+		int[] open = new int[count];
+		int top = 0;
+		for (int i = 0; i < count; i++) {
+			while (top > 0 && !engine.isBelow(keys[i], keys[open[top - 1]])) {
+				top--;
+			}
+			up[i] = top > 0 ? open[top - 1] : -1;
+			open[top++] = i;
+			lo[i] = m;
+			hi[i] = 0;
+		}
+		for (int s = 0, i = count - 1; s < m; s++) {
+			while (keys[i] != (int) (sorted[s] >>> 32)) {
+				i--;
+			}
+			lo[i] = s;
+			hi[i] = s + 1;
+		}
+		for (int i = count - 1; i > 0; i--) {
+			lo[up[i]] = Math.min(lo[up[i]], lo[i]);
+			hi[up[i]] = Math.max(hi[up[i]], hi[i]);
+		}
+
+		int[][] kids = new int[count][];
+		int[] kidCount = new int[count];
+		for (int i = 1; i < count; i++) {
+			kidCount[up[i]]++;
+		}
+		for (int i = 0; i < count; i++) {
+			kids[i] = new int[kidCount[i]];
+			kidCount[i] = 0;
+		}
+		for (int i = 1; i < count; i++) {
+			kids[up[i]][kidCount[up[i]]++] = i;
+		}
+
+		vertex = new int[count];
+		from = new int[count];
+		to = new int[count];
+		largest = new int[count];
+		smaller = new int[count];
+		other = new int[count];
+		largestSide = new int[count];
+		smallerSide = new int[count];
+		restSide = new int[count];
+		counted = new boolean[count];
+		small = new boolean[count];
+
+		/* Visit order: children before parents, the largest child last */
+		int[] order = new int[count];
+		int[] position = new int[count];
+		int[] stack = new int[count];
+		int[] next = new int[count];
+		int done = 0;
+		top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int v = stack[top - 1];
+			int[] ch = kids[v];
+			if (next[v] == 0 && ch.length > 0) {
+				int best = 0;
+				for (int c = 1; c < ch.length; c++) {
+					if (hi[ch[c]] - lo[ch[c]] > hi[ch[best]] - lo[ch[best]]) {
+						best = c;
+					}
+				}
+				int swap = ch[best];
+				ch[best] = ch[ch.length - 1];
+				ch[ch.length - 1] = swap;
+			}
+			if (next[v] < ch.length) {
+				stack[top++] = ch[next[v]++];
+			} else {
+				top--;
+				position[v] = done;
+				order[done++] = v;
+			}
+		}
+		for (int t = 0; t < count; t++) {
+			int v = order[t];
+			int bv = keys[v];
+			int[] ch = kids[v];
+			vertex[t] = bv;
+			from[t] = lo[v];
+			to[t] = hi[v];
+			largest[t] = smaller[t] = other[t] = -1;
+			small[t] = v != 0 && kids[up[v]][kids[up[v]].length - 1] != v;
+			if (ch.length == 0) {
+				continue;
+			}
+			largest[t] = position[ch[ch.length - 1]];
+			largestSide[t] = engine.sideOf(bv, keys[ch[ch.length - 1]]);
+			smaller[t] = position[ch[0]];
+			smallerSide[t] = engine.sideOf(bv, keys[ch[0]]);
+			if (ch.length == 3) {
+				other[t] = position[ch[1]];
+				restSide[t] = engine.sideOf(bv, keys[ch[1]]);
+				counted[t] = true;
+			} else {
+				restSide[t] = 2;
+				counted[t] = v != 0;
+			}
+		}
+	}
+
+	int getNodeCount() {
+		return nodes;
+	}
+
+	/**
+	 * The node of the given species that is not in the backbone, or -1
+	 */
+	int nodeOf(int taxon) {
+		for (int i = 0; i < newSpecies.length; i++) {
+			if (newSpecies[i] == taxon) {
+				return newSpeciesNode[i];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Per-node arrays of a query, for a gene tree of up to the given
+	 * number of nodes
+	 */
+	static class Walk {
+		int[] parent, order;
+		long[] size, a, b, sizeA, squareA, productAB;
+		long outA, outB, outRest;
+
+		Walk(int nodes) {
+			parent = new int[nodes];
+			order = new int[nodes];
+			size = new long[nodes];
+			a = new long[nodes];
+			b = new long[nodes];
+			sizeA = new long[nodes];
+			squareA = new long[nodes];
+			productAB = new long[nodes];
+		}
+	}
+
+	/**
+	 * Adds the quartets of this gene tree with the query at the given node
+	 * and three backbone species to counts: for each backbone vertex v,
+	 * counts[3v + s] gets those with the species on all three sides of v,
+	 * resolved with the query next to side s (a child position, or 2 for
+	 * the rest of the backbone if v is not the root).
+	 */
+	void countQuartets(int queryNode, long[] counts, Walk w) {
+		rootAt(queryNode, w);
+		for (int t = 0; t < vertex.length; t++) {
+			if (largest[t] == -1) {
+				if (!small[t]) {
+					mark(species[from[t]], 1, w);
+				}
+				continue;
+			}
+			if (counted[t]) {
+				int s = smaller[t];
+				for (int i = from[s]; i < to[s]; i++) {
+					markB(species[i], 1, w);
+				}
+				w.outA = w.outB = w.outRest = 0;
+				for (int i = from[s]; i < to[s]; i++) {
+					triplets(species[i], w);
+				}
+				for (int i = from[s]; i < to[s]; i++) {
+					markB(species[i], -1, w);
+				}
+				int base = 3 * vertex[t];
+				counts[base + largestSide[t]] += w.outA;
+				counts[base + smallerSide[t]] += w.outB;
+				counts[base + restSide[t]] += w.outRest;
+			}
+			if (small[t]) {
+				int l = largest[t];
+				for (int i = from[l]; i < to[l]; i++) {
+					mark(species[i], -1, w);
+				}
+			} else if (t != vertex.length - 1) {
+				markRange(smaller[t], w);
+				if (other[t] != -1) {
+					markRange(other[t], w);
+				}
+			}
+		}
+	}
+
+	private void markRange(int t, Walk w) {
+		for (int i = from[t]; i < to[t]; i++) {
+			mark(species[i], 1, w);
+		}
+	}
+
+	private void rootAt(int queryNode, Walk w) {
+		int[] parent = w.parent, order = w.order;
+		parent[queryNode] = -1;
+		order[0] = queryNode;
+		int n = 1;
+		for (int i = 0; i < n; i++) {
+			int v = order[i];
+			for (int j = adjacentFrom[v]; j < adjacentFrom[v + 1]; j++) {
+				int u = adjacent[j];
+				if (u != parent[v]) {
+					parent[u] = v;
+					order[n++] = u;
+				}
+			}
+		}
+		for (int v = 0; v < nodes; v++) {
+			w.a[v] = w.b[v] = w.sizeA[v] = w.squareA[v] = w.productAB[v] = 0;
+			w.size[v] = leafVertex[v] != -1 ? 1 : 0;
+		}
+		for (int i = nodes - 1; i >= 0; i--) {
+			int v = order[i];
+			if (parent[v] != -1) {
+				w.size[parent[v]] += w.size[v];
+			}
+		}
+	}
+
+	/*
+	 * Adds (or removes) a species to the largest side, keeping for each
+	 * node the sums over its children of a*size, a*a and a*b
+	 */
+	private static void mark(int node, int d, Walk w) {
+		for (int v = node; v != -1; v = w.parent[v]) {
+			int p = w.parent[v];
+			if (d < 0) {
+				w.a[v]--;
+			}
+			if (p != -1) {
+				w.sizeA[p] += d * w.size[v];
+				w.squareA[p] += d * (2 * w.a[v] + 1);
+				w.productAB[p] += d * w.b[v];
+			}
+			if (d > 0) {
+				w.a[v]++;
+			}
+		}
+	}
+
+	private static void markB(int node, int d, Walk w) {
+		for (int v = node; v != -1; v = w.parent[v]) {
+			int p = w.parent[v];
+			if (d < 0) {
+				w.b[v]--;
+			}
+			if (p != -1) {
+				w.productAB[p] += d * w.a[v];
+			}
+			if (d > 0) {
+				w.b[v]++;
+			}
+		}
+	}
+
+	/*
+	 * Triplets of a species x of the smaller side with a species y of the
+	 * largest side and a species z of the rest, by outgroup (y, x or z).
+	 * Going up from x, y and z are first met off the path; a pair met at
+	 * different nodes is resolved with the later one as outgroup, and a
+	 * pair met at the same node is resolved (with x as outgroup) only if
+	 * they are below the same child.
+	 */
+	private static void triplets(int x, Walk w) {
+		long outA = 0, outB = 0, outRest = 0, belowA = 0, belowRest = 0;
+		int prev = x;
+		for (int v = w.parent[x]; v != -1; prev = v, v = w.parent[v]) {
+			long a = w.a[v] - w.a[prev];
+			long rest = w.size[v] - w.size[prev] - a - (w.b[v] - w.b[prev]);
+			outRest += belowA * rest;
+			outA += a * belowRest;
+			outB += w.sizeA[v] - w.squareA[v] - w.productAB[v]
+					- w.a[prev] * (w.size[prev] - w.a[prev] - w.b[prev]);
+			belowA += a;
+			belowRest += rest;
+		}
+		w.outA += outA;
+		w.outB += outB;
+		w.outRest += outRest;
+	}
+}
@@ -0,0 +1,139 @@
+package phylonet.coalescent;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import phylonet.tree.model.TMutableNode;
+import phylonet.tree.model.TNode;
+import phylonet.tree.model.Tree;
+
+/**
+ * Collects the placements of a run and grafts all of them onto the
+ * backbone tree (what combine_insertions.py used to do).
+ *
+ * Species placed on the branch above a node labeled L become children of
+ * a new node PL inserted on that branch; species placed on the root are
+ * attached to the root directly. Branches are identified by the labels of
+ * the backbone nodes (see {@link Utils#labelInternalNodes(Tree)}).
+ */
+public class PlacementMerger {
+
+	private Map<String, List<String>> placements = new HashMap<String, List<String>>();
+	private int count = 0;
+
+	public void add(String query, String branch) {
+		List<String> queries = placements.get(branch);
+		if (queries == null) {
+			queries = new ArrayList<String>();
+			placements.put(branch, queries);
+		}
+		queries.add(query);
+		count++;
+	}
+
+	/**
+	 * Writes the backbone with all collected species attached, in newick
+	 * format (as {@link phylonet.tree.io.NewickWriter} writes trees), to
+	 * the given file. The tree is streamed from the backbone in one
+	 * preorder walk (with an explicit stack, so deep trees are fine);
+	 * no copy of it is made. Names that newick cannot hold as they are
+	 * (the names of placed species come from the command line) are quoted.
+	 */
+	public void write(Tree backbone, File file) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file), 1 << 16);
+		int grafted = 0;
+		try {
+			Deque<TNode> stack = new ArrayDeque<TNode>();
+			Deque<Iterator<? extends TNode>> children = new ArrayDeque<Iterator<? extends TNode>>();
+			TNode node = backbone.getRoot();
+			while (node != null) {
+				// Going down: open the new node above this one, then this one
+				if (!node.isRoot() && placements.containsKey(node.getName())) {
+					writer.write('(');
+				}
+				if (node.getChildCount() > 0) {
+					writer.write('(');
+				}
+				stack.push(node);
+				children.push(node.getChildren().iterator());
+				node = null;
+				// Going up: close finished nodes until one has another child
+				boolean closed = false;
+				while (node == null && !stack.isEmpty()) {
+					Iterator<? extends TNode> it = children.peek();
+					if (it.hasNext()) {
+						if (closed) {
+							writer.write(',');
+						}
+						node = it.next();
+						continue;
+					}
+					children.pop();
+					grafted += close(stack.pop(), writer);
+					closed = true;
+				}
+			}
+			writer.write(';');
+			writer.newLine();
+		} finally {
+			writer.close();
+		}
+		if (grafted != count) {
+			System.err.println("Warning: " + (count - grafted)
+					+ " placed species are on branches not found in the backbone tree");
+		}
+	}
+
+	/*
+	 * Writes the end of a node whose children are written, and the
+	 * species placed on the branch above it; returns how many there are
+	 */
+	private int close(TNode node, BufferedWriter writer) throws IOException {
+		List<String> queries = placements.get(node.getName());
+		if (queries != null && node.isRoot()) {
+			for (String query : queries) {
+				writer.write(',');
+				writer.write(quote(query));
+			}
+		}
+		if (node.getChildCount() > 0) {
+			writer.write(')');
+		}
+		writer.write(quote(node.getName()));
+		if (node.getParentDistance() != TMutableNode.NO_DISTANCE) {
+			writer.write(":" + node.getParentDistance());
+		}
+		if (queries != null && !node.isRoot()) {
+			for (String query : queries) {
+				writer.write(',');
+				writer.write(quote(query));
+			}
+			writer.write(')');
+			writer.write(quote("P" + node.getName()));
+		}
+		return queries == null ? 0 : queries.size();
+	}
+
+	/*
+	 * The name as a newick label: in single quotes (with quotes in it
+	 * doubled) if it has blanks or punctuation of the format, as it is
+	 * otherwise
+	 */
+	static String quote(String name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (" \t\r\n()[]':;,".indexOf(name.charAt(i)) >= 0) {
+				return "'" + name.replace("'", "''") + "'";
+			}
+		}
+		return name;
+	}
+}
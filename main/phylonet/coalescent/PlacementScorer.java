@@ -0,0 +1,142 @@
+package phylonet.coalescent;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Scores every backbone branch as the attachment point of one query
+ * species, over the (shared) backbone vertices of a {@link PlacementEngine}.
+ *
+ * The score of the backbone with q attached above vertex x is the sum,
+ * over backbone internal nodes u, of the weight of u with q added to
+ * the side that contains x, plus the weight of the new node
+ * (A_x | q | rest). Relative to q being outside every cluster, moving q
+ * below u only changes the tripartition at u. So the scores of all
+ * 2n-3 branches follow from one top-down pass that accumulates these
+ * per-node differences along the path from the root.
+ *
+ * All scores share the backbone weight (the quartets
+ * without q) and differ by the gene tree quartets with q. For each
+ * backbone vertex and each of its sides, {@link PlacementGeneTree}
+ * counts the quartets with q and one species on each side of the
+ * vertex that are resolved with q next to that side; moving q to an
+ * adjacent branch only changes which side of one vertex it is on. So
+ * one pass over the gene trees that have q, O(m log m) walks in a gene
+ * tree with m species, and one O(n) top-down pass score all branches.
+ * Everything is kept in primitive arrays indexed by vertex id, so
+ * several queries can be scored at the same time.
+ */
+class PlacementScorer implements Callable<PlacementScorer> {
+
+	private PlacementEngine engine;
+	private String query;
+
+	/**
+	 * Sum of tripartition weights for q attached above each vertex;
+	 * Long.MIN_VALUE for the root and for the second child of a binary
+	 * root (the same branch as the first child).
+	 */
+	long[] edgeScores;
+	int edge = -1;
+	long score;
+
+	PlacementScorer(PlacementEngine engine, String query) {
+		this.engine = engine;
+		this.query = query;
+	}
+
+	public PlacementScorer call() {
+		int q = GlobalMaps.taxonIdentifier.taxonId(query);
+		walk(countQuartets(q));
+		return this;
+	}
+
+	/*
+	 * For each backbone vertex v and side s of it, the quartets of the gene
+	 * trees with q and one species on each side of v, resolved with q next
+	 * to side s (see PlacementGeneTree), at counts[3v + s]
+	 */
+	private long[] countQuartets(int q) {
+		long[] counts = new long[3 * engine.clusters.length];
+		PlacementGeneTree.Walk walk = new PlacementGeneTree.Walk(engine.maxNodes);
+		for (int t : engine.treesWith(q)) {
+			PlacementGeneTree tree = engine.geneTrees[t];
+			tree.countQuartets(tree.nodeOf(q), counts, walk);
+		}
+		return counts;
+	}
+
+	/*
+	 * Quartets with q that agree with q above a child of the root, where
+	 * q is on the rest side of every other vertex
+	 */
+	private long restQuartets(long[] counts) {
+		long rest = 0;
+		for (int v = 0; v < engine.clusters.length; v++) {
+			if (v != engine.root && engine.children[v].length != 0) {
+				rest += counts[3 * v + 2];
+			}
+		}
+		return rest;
+	}
+
+	/*
+	 * Scores all branches from the quartet counts. With q above a child of the root, q is on the rest
+	 * side of every other vertex; moving q from above v to above its i-th
+	 * child only changes the side of v, from the rest to child i.
+	 */
+	private void walk(long[] counts) {
+		int size = engine.clusters.length;
+		int root = engine.root;
+		long rest = restQuartets(counts);
+		long[] quartets = new long[size];
+		edgeScores = new long[size];
+		edgeScores[root] = Long.MIN_VALUE;
+		for (int v = root; v >= 0; v--) {
+			int[] ch = engine.children[v];
+			for (int i = 0; i < ch.length; i++) {
+				if (v != root) {
+					quartets[ch[i]] = quartets[v] + counts[3 * v + i] - counts[3 * v + 2];
+				} else {
+					quartets[ch[i]] = rest + (ch.length == 3 ? counts[3 * v + i] : 0);
+				}
+				edgeScores[ch[i]] = engine.backboneWeight + 4 * quartets[ch[i]];
+			}
+		}
+		if (engine.children[root].length == 2) {
+			edgeScores[engine.children[root][1]] = Long.MIN_VALUE;
+		}
+		edge = -1;
+		for (int v = 0; v < size; v++) {
+			if (edge == -1 || edgeScores[v] > edgeScores[edge]) {
+				edge = v;
+			}
+		}
+		score = edgeScores[edge] / 4l;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * The backbone vertex below the best branch for the query
+	 */
+	public int getEdge() {
+		return edge;
+	}
+
+	/**
+	 * Quartet score of the backbone with the query placed on the best branch
+	 */
+	public long getScore() {
+		return score;
+	}
+
+	/**
+	 * Quartet score of the backbone with the query placed above the given
+	 * vertex, or -1 if that vertex does not define a (distinct) branch.
+	 */
+	public long getScore(int vertex) {
+		return edgeScores[vertex] == Long.MIN_VALUE ? -1 : edgeScores[vertex] / 4l;
+	}
+}
@@ -0,0 +1,157 @@
+package phylonet.coalescent;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Answers placement queries against a resident {@link PlacementEngine},
+ * so gene trees, backbone and polytree are only built once.
+ *
+ * The protocol is line based: each line holds one or more species names
+ * (separated by commas or white space), and for each name one line is
+ * written back with the name, the label of the branch it attaches to and
+ * the quartet score, separated by tabs (or the name followed by ERROR and
+ * a message). "quit" closes the connection and "shutdown" stops the server.
+ */
+public class PlacementServer {
+
+	private PlacementEngine engine;
+	private Set<String> placeable;
+	private volatile boolean stopped = false;
+	private ServerSocket serverSocket;
+
+	public PlacementServer(PlacementEngine engine, List<String> queries) {
+		this.engine = engine;
+		this.placeable = new HashSet<String>(queries);
+	}
+
+	/**
+	 * Serves a single client until it quits or its input ends.
+	 */
+	public void serve(InputStream in, OutputStream out) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(out), true);
+		String line;
+		while (!stopped && (line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.length() == 0) {
+				continue;
+			}
+			if ("quit".equals(line)) {
+				break;
+			}
+			if ("shutdown".equals(line)) {
+				shutdown();
+				break;
+			}
+			answer(line, writer);
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Listens on the given port of the loopback interface, serving each
+	 * connection in its own thread, until a client sends "shutdown".
+	 */
+	public void listen(int port) throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+		System.err.println("Listening for placement queries on port " + serverSocket.getLocalPort());
+		while (!stopped) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (SocketException e) {
+				if (stopped) {
+					break;
+				}
+				throw e;
+			}
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						serve(socket.getInputStream(), socket.getOutputStream());
+					} catch (IOException e) {
+						System.err.println("Placement connection failed: " + e.getMessage());
+					} finally {
+						try {
+							socket.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			}).start();
+		}
+	}
+
+	private synchronized void shutdown() throws IOException {
+		stopped = true;
+		if (serverSocket != null) {
+			serverSocket.close();
+		}
+	}
+
+	/**
+	 * Places the names of one line and answers them in the order given.
+	 * If placement fails, every name that could be placed gets an ERROR
+	 * line with the reason, and the connection stays open.
+	 */
+	private void answer(String line, PrintWriter writer) {
+		List<String> names = new ArrayList<String>();
+		List<String> queries = new ArrayList<String>();
+		for (String name : line.split("[,\\s]+")) {
+			if (name.length() == 0) {
+				continue;
+			}
+			names.add(name);
+			if (placeable.contains(name)) {
+				queries.add(name);
+			}
+		}
+		Map<String, PlacementScorer> placed = new HashMap<String, PlacementScorer>();
+		String error = null;
+		long startTime = System.currentTimeMillis();
+		try {
+			for (PlacementScorer placement : engine.place(queries)) {
+				placed.put(placement.getQuery(), placement);
+			}
+			System.err.println("Placed " + queries.size() + " species in "
+					+ (System.currentTimeMillis() - startTime) / 1000.0D + " secs");
+		} catch (RuntimeException e) {
+			Throwable cause = e;
+			while (cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+			error = "placement failed: " + cause;
+			System.err.println("Placement of " + queries + " failed: " + cause);
+		}
+		synchronized (writer) {
+			for (String name : names) {
+				PlacementScorer placement = placed.get(name);
+				if (placement != null) {
+					writer.println(name + "\t"
+							+ engine.getBranchLabel(placement.getEdge()) + "\t" + placement.getScore());
+				} else if (!placeable.contains(name)) {
+					writer.println(name + "\tERROR\tnot a new species of the input gene trees");
+				} else {
+					writer.println(name + "\tERROR\t" + error);
+				}
+			}
+			writer.flush();
+		}
+	}
+}
@@ -1,9 +1,11 @@
 package phylonet.coalescent;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import phylonet.tree.model.TNode;
 import phylonet.tree.model.Tree;
@@ -15,20 +17,9 @@ public class Polytree {
 	
 	static long time = 0;
 	
-	static long F(int[] x, int[] y, int[] z){
-		long a = x[0], b = x[1], c = x[2], d = y[0], e = y[1], f = y[2], g = z[0], h = z[1], i = z[2];
-		return a * ( (a + e + i - 3l)  * e * i + (a + f + h - 3l)  * f * h )
-			 + b * ((b + d + i - 3l)  * d * i + (b + f + g - 3l)  * f * g )
-			 + c * ((c + d + h - 3l)  * d * h + (c + e + g - 3l)  * e * g );
-	}
-	
-	static long U(int[] x, int[] y, int[] z){
-		long a = x[0], d = x[1], b = y[0], e = y[1], c = z[0], f = z[1], s = a + b + c - 3;
-		return ((s - c + f) * b * f + (s - b + e) * e * c) * a + ((s - a + d) * d - 2 * s * a) * b * c;
-	}
-	
 	/**
-	 * A node in the input gene trees. Used temporarily to build the polytree. 
+	 * A node in the input gene trees. Used temporarily to build the polytree 
+	 * (and kept by incremental polytrees, to add and remove gene trees). 
 	 * @author smirarab
 	 *
 	 */
@@ -38,18 +29,24 @@ public class Polytree {
 		PTCluster cluster;
 		PTPartition partition;
 		boolean isUsed = false;
+		/* Gene tree (high bits) and position in postorder: nodes seen first come first */
+		final long order;
+		/* What the instructions of this node depend on, when last encoded (incremental polytrees only) */
+		long state = -1;
 		
 		/**
 		 * To be used for leaves
 		 * @param n
 		 */
 
-		PTNode(TNode n){
+		PTNode(TNode n, long order){
+			this.order = order;
 			HashOnlyTreeCluster c = new HashOnlyTreeCluster(GlobalMaps.taxonIdentifier.taxonId(n.getName()));
 			cluster = Polytree.this.clusters.get(c);
 			children = new ArrayList<PTNode>();
 		}
-		PTNode(ArrayList<PTNode> ch, HashOnlyTreeCluster s){
+		PTNode(ArrayList<PTNode> ch, HashOnlyTreeCluster s, long order){
+			this.order = order;
 			children = ch;
 			HashOnlyTreeCluster c =  new HashOnlyTreeCluster();
 			ArrayList<STITreeCluster> cs = new ArrayList<STITreeCluster>();
@@ -66,19 +63,23 @@ public class Polytree {
 			if (cs.size() >= 3){
 				AbstractPartition p = AbstractPartition.createPartition(cs);
 				partition = Polytree.this.partitions.get(p);
-				if (partition != null){
-					partition.cardinality++;
+				if (partition == null){
+					PTPartition created = new PTPartition();
+					partition = Polytree.this.partitions.putIfAbsent(p, created);
+					if (partition == null) partition = created;
 				}
-				else partition = new PTPartition(p, this);
+				partition.add(this);
 			}
 		}
 		PTCluster findCluster(HashOnlyTreeCluster c, PTNode n){
 			PTCluster cluster = Polytree.this.clusters.get(c);
-			if (cluster != null) {
-				if (cluster.firstNode == null) cluster.firstNode = n;
-				return cluster;
+			if (cluster == null) {
+				PTCluster created = new PTCluster(c);
+				cluster = Polytree.this.clusters.putIfAbsent(c, created);
+				if (cluster == null) cluster = created;
 			}
-			else return new PTCluster(c, n);
+			if (n != null) cluster.setFirstNode(n);
+			return cluster;
 		}
 		boolean isFirstResolutionOfCluster(){
 			if (partition == null) return false; // leaf node
@@ -123,7 +124,35 @@ public class Polytree {
 				}
 			}
 		}
-		void buildInstructionQueue(){
+		/**
+		 * Numbers the clusters this subtree adds to the list, in the order
+		 * they are added, from next on
+		 * @return the next number
+		 */
+		int numberListEntries(int tree, int next){
+			for (PTNode child: children){
+				next = child.numberListEntries(tree, next);
+			}
+			if (addToList()) {
+				cluster.listTree = tree;
+				cluster.listPos = next++;
+			}
+			return next;
+		}
+		
+		/**
+		 * Writes the instructions of this subtree into the queue from pos
+		 * on, or only counts them if the queue is null
+		 * @return the position after them
+		 */
+		int buildInstructionQueue(int[] queue, int pos){
+			return buildInstructionQueue(queue, pos, null);
+		}
+		
+		/**
+		 * Same, also noting in the segment where the queue reads from the list
+		 */
+		int buildInstructionQueue(int[] queue, int pos, Segment segment){
 			/*
 			 * -1 - new tree
 			 * 
@@ -143,29 +172,83 @@ public class Polytree {
 			 * value >> 1 - the position on the list to fetch from
 			 */
 			for (PTNode child: children){
-				child.buildInstructionQueue();
+				pos = child.buildInstructionQueue(queue, pos, segment);
 			}
 			if (isUsed){
 				int v = (children.size() << 5) | 1;
 				if (addToStack()) v = v | 2;
-				if (addToList()) {
-					v = v | 4;
-					cluster.listPos = Polytree.this.listSize++;
-				}
+				if (addToList()) v = v | 4;
 				if (isFirstResolutionOfCluster()){
 					v = v | 8;
 					if (partition.cardinality > 1){
 						v = v | 16;
-						Polytree.this.queueBuilder.add(v);
-						Polytree.this.queueBuilder.add(partition.cardinality); // The cardinality is saved on the queue
+						if (queue != null) {
+							queue[pos] = v;
+							queue[pos + 1] = partition.cardinality; // The cardinality is saved on the queue
+						}
+						return pos + 2;
 					}
-					else Polytree.this.queueBuilder.add(v);
 				}
-				else Polytree.this.queueBuilder.add(v);
+				if (queue != null) queue[pos] = v;
+				return pos + 1;
+			}
+			else if (parent != null && parent.isUsed) {
+				if (queue != null) {
+					queue[pos] = cluster.listPos << 1;
+					if (segment != null) segment.addReference(pos, cluster);
+				}
+				return pos + 1;
+			}
+			return pos;
+		}
+		
+		/**
+		 * Adds the clusters this subtree adds to the list, in order
+		 */
+		void listEntries(List<PTCluster> listed){
+			for (PTNode child: children){
+				child.listEntries(listed);
 			}
+			if (addToList()) listed.add(cluster);
+		}
+		
+		/**
+		 * Saves what the instructions of each node of this subtree depend
+		 * on (see {@link #buildInstructionQueue})
+		 * @return whether any of it changed since last saved
+		 */
+		boolean updateState(){
+			boolean changed = false;
+			for (PTNode child: children){
+				changed |= child.updateState();
+			}
+			long s;
+			if (!isUsed) s = parent != null && parent.isUsed ? 1 : 0;
 			else {
-				if (parent != null && parent.isUsed) Polytree.this.queueBuilder.add(cluster.listPos << 1);
+				s = 2 | (addToStack() ? 4 : 0) | (addToList() ? 8 : 0);
+				if (isFirstResolutionOfCluster()) s |= 16 | (long) partition.cardinality << 5;
+			}
+			changed |= s != state;
+			state = s;
+			return changed;
+		}
+		
+		void resetFlags(){
+			for (PTNode child: children){
+				child.resetFlags();
+			}
+			isUsed = false;
+		}
+		
+		/**
+		 * Takes the nodes of this subtree out of their clusters and partitions
+		 */
+		void remove(){
+			for (PTNode child: children){
+				child.remove();
 			}
+			if (partition != null) partition.remove(this);
+			if (!children.isEmpty()) cluster.remove(this);
 		}
 		
 		/**
@@ -190,160 +273,499 @@ public class Polytree {
 		PTNode firstNode; // The first gene tree node that matched this cluster
 		boolean intersectionAlreadyComputed = false; 
 		int listPos = -1;
+		int listTree = -1; // The gene tree that adds the cluster to the list; listPos counts from its first entry until numbered
+		
+		ArrayList<PTNode> nodes; // All gene tree nodes that matched this cluster (incremental polytrees only)
 		
-		PTCluster(HashOnlyTreeCluster c, PTNode n){
-			clusterRef = c;
-			firstNode = n;
-			Polytree.this.clusters.put(c, this);
-		}
 		PTCluster(HashOnlyTreeCluster c){
 			clusterRef = c;
-			firstNode = null;
-			intersectionAlreadyComputed = true;
-			listPos = Polytree.this.listSize++;
-			Polytree.this.clusters.put(c, this);
+			if (incremental) nodes = new ArrayList<PTNode>();
+		}
+		synchronized void setFirstNode(PTNode n){
+			if (firstNode == null || n.order < firstNode.order) firstNode = n;
+			if (nodes != null) nodes.add(n);
+		}
+		synchronized void remove(PTNode n){
+			nodes.remove(n);
+			if (firstNode == n) firstNode = first(nodes);
 		}
 	}
 	
 	final class PTPartition{
 		PTNode firstNode;
-		int cardinality = 1; // cardinality of the partition in the gene tree set
+		int cardinality = 0; // cardinality of the partition in the gene tree set
+		ArrayList<PTNode> nodes; // incremental polytrees only
 		
-		PTPartition(AbstractPartition p, PTNode n){
-			firstNode = n;
-			Polytree.this.partitions.put(p, this);
+		PTPartition(){
+			if (incremental) nodes = new ArrayList<PTNode>();
+		}
+		synchronized void add(PTNode n){
+			cardinality++;
+			if (firstNode == null || n.order < firstNode.order) firstNode = n;
+			if (nodes != null) nodes.add(n);
+		}
+		synchronized void remove(PTNode n){
+			cardinality--;
+			nodes.remove(n);
+			if (firstNode == n) firstNode = first(nodes);
 		}
 	}
 	
-	public static final class PTNative{
-		private static final int batchSize = 32;
+	private static PTNode first(List<PTNode> nodes){
+		PTNode first = null;
+		for (PTNode n: nodes){
+			if (first == null || n.order < first.order) first = n;
+		}
+		return first;
+	}
+	
+	/**
+	 * The instructions of one gene tree in an incremental polytree, kept
+	 * with where they read from the list, so they only need to be written
+	 * again when the tree itself changes
+	 */
+	final class Segment{
+		final int id;
+		final PTNode root;
+		final long[] all; // The leaves of the gene tree
+		int[] code; // Instructions, starting with the new tree marker
+		PTCluster[] listed; // The clusters added to the list, in order
+		int[] references = new int[16]; // Positions in the code that read a cluster from the list
+		PTCluster[] referenced = new PTCluster[16];
+		int referenceCount = 0;
+		
+		Segment(int id, PTNode root, long[] all){
+			this.id = id;
+			this.root = root;
+			this.all = all;
+		}
+		
+		void addReference(int pos, PTCluster c){
+			if (referenceCount == references.length){
+				references = Arrays.copyOf(references, 2 * referenceCount);
+				referenced = Arrays.copyOf(referenced, 2 * referenceCount);
+			}
+			references[referenceCount] = pos;
+			referenced[referenceCount++] = c;
+		}
+		
+		void encode(){
+			referenceCount = 0;
+			code = new int[1 + root.buildInstructionQueue(null, 0)];
+			code[0] = -1;
+			root.buildInstructionQueue(code, 1, this);
+		}
 		
+		/**
+		 * Updates the positions read from the list, which move when
+		 * earlier trees change
+		 */
+		void relink(){
+			for (int i = 0; i < referenceCount; i++){
+				code[references[i]] = referenced[i].listPos << 1;
+			}
+		}
+	}
+	
+	public static final class PTNative{
 
-		private static native void cppInit(int n, int listSize, int[] q, long[][] c);
-		private static native void cppBatchCompute(long[] result, long[][] a, long[][] b, long[][] c);
+		static native void cppInit(int n, int listSize, int[] q, long[][] c);
+		static native void cppBatchCompute(long[] result, long[][] a, long[][] b, long[][] c);
 
 	}
 	
-	WQDataCollection dataCollection;
-	HashMap<HashOnlyTreeCluster, PTCluster> clusters = new HashMap<HashOnlyTreeCluster, PTCluster>();	
-	HashMap<AbstractPartition, PTPartition> partitions = new HashMap<AbstractPartition, PTPartition>();
-	ArrayList<PTNode> nodeRoots = new ArrayList<PTNode>();
+	ConcurrentHashMap<HashOnlyTreeCluster, PTCluster> clusters = new ConcurrentHashMap<HashOnlyTreeCluster, PTCluster>();	
+	ConcurrentHashMap<AbstractPartition, PTPartition> partitions = new ConcurrentHashMap<AbstractPartition, PTPartition>();
+	PTNode[] nodeRoots;
+	
+	/* Whether gene trees can be added and removed, and what that needs */
+	boolean incremental = false;
+	private ArrayList<Segment> segments;
+	private int nextTree;
+	private boolean reflag = false;
+	/* Number of updates so far; weights kept from an earlier one are not valid */
+	private volatile int version = 0;
 
-	ArrayList<Integer> queueBuilder = new ArrayList<Integer>();
 	int[] queue;
 	int listSize = 0;
 	long maxScore = 0;
-	private boolean useNativeMethod;
+	long[][] treeAll; // The leaves of each gene tree
+	private PolytreeKernel kernel;
 	
-	public Polytree(List<Tree> trees, WQDataCollection dataCollection){
+	/* Stack size of the threads building the polytree, which recurse over gene tree nodes */
+	private static final long STACK_SIZE = 1L << 26;
+	
+	/**
+	 * @param kernelName the kernel used for weights, or "auto" to choose it
+	 * @param batch the batch size of the kernel, or 0 to choose it
+	 */
+	public Polytree(List<Tree> trees, WQDataCollection dataCollection, String kernelName, int batch){
+		this(trees, dataCollection.treeAllClusters, kernelName, batch, false);
+	}
+	
+	/**
+	 * @param treeAllClusters the leaves of each gene tree
+	 * @param incremental whether gene trees can be added and removed later
+	 *   (see {@link #addTree}); the polytree then keeps its gene tree nodes
+	 */
+	Polytree(List<Tree> trees, List<STITreeCluster> treeAllClusters, String kernelName, int batch, boolean incremental){
 		
-		this.dataCollection = dataCollection;
 		long t = System.currentTimeMillis();
+		this.incremental = incremental;
 		
 		// Create singleton clusters and add to map
 		for (int i = 0; i < GlobalMaps.taxonIdentifier.taxonCount(); i++){
-			HashOnlyTreeCluster c = new HashOnlyTreeCluster(i);
-			new PTCluster(c);
+			PTCluster c = new PTCluster(new HashOnlyTreeCluster(i));
+			c.intersectionAlreadyComputed = true;
+			c.listPos = listSize++;
+			clusters.put(c.clusterRef, c);
 		}
 		
-		// Represent gene trees as PTNodes
-		Iterator<STITreeCluster> tit = dataCollection.treeAllClusters.iterator();
-		for (Tree tr: trees){
-			nodeRoots.add(buildTree(tr.getRoot(), new HashOnlyTreeCluster(tit.next())));
+		// Represent gene trees as PTNodes, on all threads. Clusters and
+		// partitions are shared through concurrent maps; the first node of
+		// each is the first in tree order, whatever the threads do.
+		final int m = trees.size();
+		final Tree[] geneTrees = trees.toArray(new Tree[m]);
+		final HashOnlyTreeCluster[] treeClusters = new HashOnlyTreeCluster[m];
+		for (int i = 0; i < m; i++){
+			treeClusters[i] = new HashOnlyTreeCluster(treeAllClusters.get(i));
 		}
+		nodeRoots = new PTNode[m];
+		forEachTree(m, new TreeStep() {
+			public void run(int i) {
+				nodeRoots[i] = buildTree(geneTrees[i].getRoot(), treeClusters[i], (long) i << 32, new int[1]);
+			}
+		});
 		
 		// Set the isUsedFlag on gene tree nodes
 		for (PTNode n: nodeRoots){
 			n.setClusterFlag();
 		}
 		
+		if (incremental){
+			segments = new ArrayList<Segment>(m);
+			for (int i = 0; i < m; i++){
+				segments.add(new Segment(i, nodeRoots[i], treeAllClusters.get(i).getBitSet().getArray()));
+			}
+			nextTree = m;
+			nodeRoots = null;
+			link();
+			start();
+			System.err.println("Polytree building time: " + (System.currentTimeMillis() - t) / 1000.0D + " seconds.");
+			kernel = PolytreeKernels.choose(kernel, treeAll, kernelName, batch);
+			return;
+		}
+		
 		// For each node of each gene tree, decide how it
 		//  should be treated when calculating weights.
 		// Options (non-exclusive) are:
 		//   - compute the intersection for the cluster or retrieve it from the list
 		//   - compute the weight for the partition if it's the first resolution
-		for (PTNode n: nodeRoots){
-			queueBuilder.add(-1);
-			n.buildInstructionQueue();
+		// Each gene tree numbers its list entries and counts its instructions,
+		// then writes them at its place in the queue once all are known.
+		final int[] listCounts = new int[m], lengths = new int[m];
+		forEachTree(m, new TreeStep() {
+			public void run(int i) {
+				listCounts[i] = nodeRoots[i].numberListEntries(i, 0);
+				lengths[i] = 1 + nodeRoots[i].buildInstructionQueue(null, 0);
+			}
+		});
+		final int[] listStarts = new int[m], queueStarts = new int[m];
+		int length = 0;
+		for (int i = 0; i < m; i++){
+			listStarts[i] = listSize;
+			listSize += listCounts[i];
+			queueStarts[i] = length;
+			length += lengths[i];
 		}
-		
+		for (PTCluster c: clusters.values()){
+			if (c.listTree >= 0) c.listPos += listStarts[c.listTree];
+		}
+		final int[] q = new int[length];
+		forEachTree(m, new TreeStep() {
+			public void run(int i) {
+				q[queueStarts[i]] = -1;
+				nodeRoots[i].buildInstructionQueue(q, queueStarts[i] + 1);
+			}
+		});
 
-		queue = mapToInt(queueBuilder);
+		queue = q;
+		// Only the queue is needed from now on
 		clusters = null;
 		partitions = null;
-		queueBuilder = null;
+		nodeRoots = null;
 
-		STITreeCluster c = (new STITreeCluster(GlobalMaps.taxonIdentifier)).complementaryCluster();
-		maxScore = computeUpperbound(c.getBitSet());
-		System.err.println("Polytree max score: " + maxScore / 4);
+		treeAll = new long[m][];
+		for (int i = 0; i < m; i++) {
+			treeAll[i] = treeAllClusters.get(i).getBitSet().getArray();
+		}
+		start();
 		System.err.println("Polytree building time: " + (System.currentTimeMillis() - t) / 1000.0D + " seconds.");
 		System.err.println("Memory used : "+ Runtime.getRuntime().totalMemory()/1000000+" MB");
 		
-		try {
-			System.loadLibrary("Astral");
-			System.err.println("Using native AVX batch computing method.");
-			useNativeMethod = true;
+		kernel = PolytreeKernels.choose(kernel, treeAll, kernelName, batch);
+	}
+	
+	/**
+	 * A polytree already built (see {@link PolytreeFile})
+	 * @param treeAll the leaves of each gene tree
+	 */
+	Polytree(int[] queue, int listSize, long[][] treeAll, String kernelName, int batch){
+		this.queue = queue;
+		this.listSize = listSize;
+		this.treeAll = treeAll;
+		clusters = null;
+		partitions = null;
+		start();
+		kernel = PolytreeKernels.choose(kernel, treeAll, kernelName, batch);
+	}
+	
+	/**
+	 * Adds a gene tree after all others. Its quartets count in the weights
+	 * once {@link #update} is called.
+	 * @return the id of the gene tree, to remove it
+	 */
+	synchronized int addTree(Tree tree){
+		checkIncremental();
+		STITreeCluster all = GlobalMaps.taxonIdentifier.newCluster();
+		for (String leaf: tree.getLeaves()){
+			all.addLeaf(GlobalMaps.taxonIdentifier.taxonId(leaf));
+		}
+		int id = nextTree++;
+		PTNode root = buildTree(tree.getRoot(), new HashOnlyTreeCluster(all), (long) id << 32, new int[1]);
+		// Flags of earlier trees do not depend on later ones
+		if (!reflag) root.setClusterFlag();
+		segments.add(new Segment(id, root, all.getBitSet().getArray()));
+		return id;
+	}
+	
+	/**
+	 * Removes a gene tree (by the id {@link #addTree} gave it, or its
+	 * position in the gene trees the polytree was built from); this takes
+	 * effect when {@link #update} is called
+	 */
+	synchronized void removeTree(int id){
+		checkIncremental();
+		for (int i = 0; i < segments.size(); i++){
+			if (segments.get(i).id == id){
+				segments.remove(i).root.remove();
+				// Which nodes are used depends on all earlier trees
+				reflag = true;
+				return;
+			}
 		}
-		catch (Throwable e) {
-			useNativeMethod = false;
-			e.printStackTrace(); 
-			System.err.println("Fail to load native library "+System.mapLibraryName("Astral")+"; use Java default computing method.");
+		throw new IllegalArgumentException("No gene tree " + id + " in the polytree");
+	}
+	
+	/**
+	 * Writes again the instructions of the gene trees affected by the
+	 * changes since the last update, and starts using the new queue.
+	 * Weights must not be computed meanwhile, and weights computed
+	 * before (e.g. in caches) are no longer valid.
+	 */
+	synchronized void update(){
+		checkIncremental();
+		long t = System.currentTimeMillis();
+		if (reflag){
+			for (Segment segment: segments){
+				segment.root.resetFlags();
+			}
+			for (PTCluster c: clusters.values()){
+				c.intersectionAlreadyComputed = false;
+			}
+			for (int i = 0; i < GlobalMaps.taxonIdentifier.taxonCount(); i++){
+				clusters.get(new HashOnlyTreeCluster(i)).intersectionAlreadyComputed = true;
+			}
+			for (Segment segment: segments){
+				segment.root.setClusterFlag();
+			}
+			reflag = false;
 		}
-		
-		if (useNativeMethod) {
-			int m = trees.size();
-			long b[][] = new long[m][];
-			Iterator<STITreeCluster> ti = dataCollection.treeAllClusters.iterator();
-			for (int i = 0; i < m; i++) {
-				b[i] = ti.next().getBitSet().getArray();
+		int changed = link();
+		PolytreeKernel old = kernel;
+		start();
+		kernel = PolytreeKernels.choose(kernel, treeAll, old.name(), old.lanes());
+		old.release();
+		version++;
+		System.err.println("Polytree updated: " + changed + " of " + segments.size() + " gene trees encoded again in "
+				+ (System.currentTimeMillis() - t) / 1000.0D + " seconds.");
+	}
+	
+	/**
+	 * Number of times {@link #update} was called
+	 */
+	int getVersion(){
+		return version;
+	}
+	
+	/**
+	 * The id of the gene tree at the given position, to remove it
+	 */
+	synchronized int getTreeId(int position){
+		checkIncremental();
+		return segments.get(position).id;
+	}
+	
+	/**
+	 * Whether the other polytree has the same instructions and list size
+	 */
+	boolean sameInstructions(Polytree other){
+		return listSize == other.listSize && Arrays.equals(queue, other.queue);
+	}
+	
+	/**
+	 * Frees what the kernel holds outside the Java heap
+	 */
+	void release(){
+		kernel.release();
+	}
+	
+	private void checkIncremental(){
+		if (!incremental) throw new IllegalStateException("Polytree was not built to add or remove gene trees");
+	}
+	
+	/**
+	 * Numbers the list entries, encodes the gene trees that changed and
+	 * puts the queue together
+	 * @return the number of gene trees encoded
+	 */
+	private int link(){
+		final Segment[] s = segments.toArray(new Segment[segments.size()]);
+		final boolean[] changed = new boolean[s.length];
+		forEachTree(s.length, new TreeStep() {
+			public void run(int i) {
+				if (s[i].root.updateState() || s[i].code == null){
+					changed[i] = true;
+					ArrayList<PTCluster> listed = new ArrayList<PTCluster>();
+					s[i].root.listEntries(listed);
+					s[i].listed = listed.toArray(new PTCluster[listed.size()]);
+				}
+			}
+		});
+		listSize = GlobalMaps.taxonIdentifier.taxonCount();
+		for (Segment segment: s){
+			for (PTCluster c: segment.listed){
+				c.listPos = listSize++;
+			}
+		}
+		forEachTree(s.length, new TreeStep() {
+			public void run(int i) {
+				if (changed[i]) s[i].encode();
+				else s[i].relink();
 			}
-			PTNative.cppInit(GlobalMaps.taxonIdentifier.taxonCount(), listSize, queue, b);
+		});
+		int length = 0, count = 0;
+		for (int i = 0; i < s.length; i++){
+			length += s[i].code.length;
+			if (changed[i]) count++;
+		}
+		int[] q = new int[length];
+		treeAll = new long[s.length][];
+		for (int i = 0, pos = 0; i < s.length; i++){
+			System.arraycopy(s[i].code, 0, q, pos, s[i].code.length);
+			pos += s[i].code.length;
+			treeAll[i] = s[i].all;
 		}
+		queue = q;
+		return count;
 	}
 	
-	private int[] mapToInt(List<Integer> list) {
-		int[] ret = new int [list.size()]; 
-		for (int i = 0; i < ret.length; i++)
-			ret[i] = list.get(i);
-		return ret;
+	/**
+	 * Sets up the scalar kernel and the max score
+	 */
+	private void start(){
+		kernel = new PolytreeKernel(queue, listSize, GlobalMaps.taxonIdentifier.taxonCount(), treeAll, 1);
+		STITreeCluster c = (new STITreeCluster(GlobalMaps.taxonIdentifier)).complementaryCluster();
+		maxScore = computeUpperbound(c.getBitSet());
+		System.err.println("Polytree max score: " + maxScore / 4);
+	}
+	
+	private interface TreeStep {
+		void run(int tree);
 	}
 	
+	/**
+	 * Runs the step for each gene tree, on all threads
+	 */
+	private static void forEachTree(final int count, final TreeStep step){
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[Math.max(1, Math.min(Threading.getNumThreads(), count))];
+		for (int t = 0; t < threads.length; t++){
+			threads[t] = new Thread(null, new Runnable() {
+				public void run() {
+					try {
+						for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()){
+							step.run(i);
+						}
+					}
+					catch (Throwable e) {
+						error.compareAndSet(null, e);
+						next.set(count);
+					}
+				}
+			}, "polytree-" + t, STACK_SIZE);
+			threads[t].start();
+		}
+		try {
+			for (Thread thread: threads){
+				thread.join();
+			}
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		Throwable e = error.get();
+		if (e instanceof RuntimeException) throw (RuntimeException) e;
+		if (e instanceof Error) throw (Error) e;
+	}
 
-	private PTNode buildTree(TNode node, HashOnlyTreeCluster s){
-		if (node.isLeaf()) return new PTNode(node);
+	/**
+	 * @param tree the gene tree (in the high bits) for the order of nodes
+	 * @param next the position of the next node in postorder
+	 */
+	private PTNode buildTree(TNode node, HashOnlyTreeCluster s, long tree, int[] next){
+		if (node.isLeaf()) return new PTNode(node, tree | next[0]++);
 		else {
 			ArrayList<PTNode> cs = new ArrayList<PTNode>();
 			for (TNode ch: node.getChildren()){
-				cs.add(buildTree(ch, s));
+				cs.add(buildTree(ch, s, tree, next));
 			}
-			return new PTNode(cs, s);
+			return new PTNode(cs, s, tree | next[0]++);
 		}
 	}
 
 	public Long[] WQWeightByTraversal(Tripartition[] trips){
 		long t = System.nanoTime();
 		Long[] ret = new Long[trips.length];
-		if (!useNativeMethod) {
-			int i = 0;
-			for (Tripartition trip: trips) {
-				ret[i++] = this.WQWeightByTraversal(trip);
-			}
-		} else {
-			for (int i = 0; i < trips.length; i += PTNative.batchSize) {
-				int size = (trips.length - i > PTNative.batchSize) ? PTNative.batchSize : trips.length - i;
-				long[] result = new long[size];
-				long[][] a = new long[size][];
-				long[][] b = new long[size][];
-				long[][] c = new long[size][];
-				for (int j = 0; j < size; j++) {
-					a[j] = trips[(i + j)].cluster1.getBitSet().getArray();
-					b[j] = trips[(i + j)].cluster2.getBitSet().getArray();
-					c[j] = trips[(i + j)].cluster3.getBitSet().getArray();
-				}
-				PTNative.cppBatchCompute(result, a, b, c);
+		PolytreeKernel kernel = this.kernel;
+		int n = kernel.lanes();
+		long[] result = new long[n];
+		long[][] a = new long[n][], b = new long[n][], c = new long[n][];
+		int[] rows = new int[n];
+		int size = 0;
+		for (int i = 0; i < trips.length; i++) {
+			Tripartition trip = trips[i];
+			if (trip.cluster1 == trip.cluster2) {
+				ret[i] = this.WQWeightByTraversal(trip);
+				continue;
+			}
+			a[size] = trip.cluster1.getBitSet().getArray();
+			b[size] = trip.cluster2.getBitSet().getArray();
+			c[size] = trip.cluster3.getBitSet().getArray();
+			rows[size++] = i;
+			if (size == n) {
+				kernel.weights(a, b, c, result, 0, size);
 				for (int j = 0; j < size; j++) {
-					ret[i+j] = result[j];
+					ret[rows[j]] = result[j];
 				}
+				size = 0;
+			}
+		}
+		if (size != 0) {
+			kernel.weights(a, b, c, result, 0, size);
+			for (int j = 0; j < size; j++) {
+				ret[rows[j]] = result[j];
 			}
 		}
 		Polytree.time += System.nanoTime() - t;
@@ -351,6 +773,23 @@ public class Polytree {
 		return ret;
 		
 	}
+	/**
+	 * Computes the weights of all tripartitions of the slab into its
+	 * weights array
+	 */
+	void WQWeightByTraversal(TripartitionSlab slab){
+		long t = System.nanoTime();
+		// a calibrating kernel may change its lanes while we loop; a
+		// batch of the old size is still split by it
+		PolytreeKernel kernel = this.kernel;
+		int count = slab.count, lanes = kernel.lanes();
+		for (int i = 0; i < count; i += lanes) {
+			kernel.weights(slab.first, slab.second, slab.third, slab.weights, i,
+					Math.min(lanes, count - i));
+		}
+		Polytree.time += System.nanoTime() - t;
+	}
+
 	public Long WQWeightByTraversal(Tripartition trip){
 
 		if (trip == null)
@@ -365,171 +804,17 @@ public class Polytree {
 	}
 	
 	public Long WQWeightByTraversal(BitSet[] b){
-		int[][] stack, list;
-		stack = new int[GlobalMaps.taxonIdentifier.taxonCount() + 1][3];
-		list = new int[listSize][3];
-		int[] treeTotal = new int[3];
-		long[] sx = new long[3], sxy = new long[3];
-		long weight = 0;
-		int stackEnd = 0, listEnd = GlobalMaps.taxonIdentifier.taxonCount();
-		Iterator<STITreeCluster> tit = dataCollection.treeAllClusters.iterator();
-		for (int i = 0, i_end = GlobalMaps.taxonIdentifier.taxonCount(); i < i_end; i++){
-			list[i][0] = b[0].get(i) ? 1 : 0;
-			list[i][1] = b[1].get(i) ? 1 : 0;
-			list[i][2] = b[2].get(i) ? 1 : 0;
-		}
-		for (int i = 0, i_end = queue.length; i < i_end; i++){
-			int cmd = queue[i];
-			if (cmd == -1) {
-				BitSet all = tit.next().getBitSet();
-				treeTotal[0] = b[0].intersectionSize(all);
-				treeTotal[1] = b[1].intersectionSize(all);
-				treeTotal[2] = b[2].intersectionSize(all);
-				continue;
-			}
-			if ((cmd & 1) != 0){
-				int numChildren = cmd >> 5;
-				long tempWeight = 0;
-				int[] p = stack[stackEnd], q;
-				p[0] = treeTotal[0];
-				p[1] = treeTotal[1];
-				p[2] = treeTotal[2];
-				for (int j = stackEnd - numChildren; j < stackEnd; j++){
-					q = stack[j];
-					p[0] -= q[0];
-					p[1] -= q[1];
-					p[2] -= q[2];
-				}
-				if ((cmd & 8) != 0){
-					if (numChildren == 2){
-						tempWeight = F(stack[stackEnd - 2], stack[stackEnd - 1], stack[stackEnd]);
-					}
-					else{
-						sx[0] = 0;
-						sx[1] = 0;
-						sx[2] = 0;
-						sxy[0] = 0;
-						sxy[1] = 0;
-						sxy[2] = 0;
-						for (int j = stackEnd - numChildren; j <= stackEnd; j++){
-							q = stack[j];
-							sx[0] += q[0];
-							sx[1] += q[1];
-							sx[2] += q[2];
-							sxy[0] += q[1] * q[2];
-							sxy[1] += q[2] * q[0];
-							sxy[2] += q[0] * q[1];
-						}
-						for (int j = stackEnd - numChildren; j <= stackEnd; j++){
-							q = stack[j];
-							tempWeight += ((sx[1] - q[1]) * (sx[2] - q[2]) - sxy[0] + q[1] * q[2]) * q[0] * (q[0] - 1L)
-								+ ((sx[2] - q[2]) * (sx[0] - q[0]) - sxy[1] + q[2] * q[0]) * q[1] * (q[1] - 1L)
-								+ ((sx[0] - q[0]) * (sx[1] - q[1]) - sxy[2] + q[0] * q[1]) * q[2] * (q[2] - 1L);
-						}
-					}
-					if ((cmd & 16) != 0) weight += tempWeight * queue[++i];
-					else weight += tempWeight;
-				}
-				stackEnd -= numChildren;
-				if ((cmd & 2) != 0){
-					q = stack[stackEnd++];
-					q[0] = treeTotal[0] - p[0];
-					q[1] = treeTotal[1] - p[1];
-					q[2] = treeTotal[2] - p[2];
-				}
-				if ((cmd & 4) != 0){
-					q = list[listEnd++];
-					q[0] = treeTotal[0] - p[0];
-					q[1] = treeTotal[1] - p[1];
-					q[2] = treeTotal[2] - p[2];
-				}
-			}
-			else {
-				int[] p = list[cmd >> 1], q = stack[stackEnd++];
-				q[0] = p[0];
-				q[1] = p[1];
-				q[2] = p[2];
-			}
-		}
-		//System.err.println(weight);
-		return weight;
+		return WQWeightByTraversal(b[0].getArray(), b[1].getArray(), b[2].getArray());
+	}
+
+	/**
+	 * Weight of the tripartition with the given words for its three sides
+	 */
+	Long WQWeightByTraversal(long[] b0, long[] b1, long[] b2){
+		return kernel.weight(b0, b1, b2);
 	}
 	
 	public Long computeUpperbound(BitSet b){
-		int[][] stack, list;
-		stack = new int[GlobalMaps.taxonIdentifier.taxonCount() + 1][3];
-		list = new int[listSize][3];
-		int[] treeTotal = new int[3];
-		long[] sx = new long[3], sxy = new long[3];
-		long weight = 0;
-		int stackEnd = 0, listEnd = GlobalMaps.taxonIdentifier.taxonCount();
-		Iterator<STITreeCluster> tit = dataCollection.treeAllClusters.iterator();
-		for (int i = 0, i_end = GlobalMaps.taxonIdentifier.taxonCount(); i < i_end; i++){
-			list[i][0] = b.get(i) ? 1 : 0;
-			list[i][1] = 1;
-		}
-		for (int i = 0, i_end = queue.length; i < i_end; i++){
-			int cmd = queue[i];
-			if (cmd == -1) {
-				BitSet all = tit.next().getBitSet();
-				treeTotal[0] = b.intersectionSize(all);
-				treeTotal[1] = all.cardinality();
-				continue;
-			}
-			if ((cmd & 1) != 0){
-				int numChildren = cmd >> 5;
-				long tempWeight = 0;
-				int[] p = stack[stackEnd], q;
-				p[0] = treeTotal[0];
-				p[1] = treeTotal[1];
-				for (int j = stackEnd - numChildren; j < stackEnd; j++){
-					q = stack[j];
-					p[0] -= q[0];
-					p[1] -= q[1];
-				}
-				if ((cmd & 8) != 0){
-					if (numChildren == 2){
-						tempWeight = U(stack[stackEnd - 2], stack[stackEnd - 1], stack[stackEnd]);
-					}
-					else{
-						sx[0] = 0;
-						sx[1] = 0;
-						sxy[0] = 0;
-						sxy[1] = 0;
-						for (int j = stackEnd - numChildren; j <= stackEnd; j++){
-							q = stack[j];
-							sx[0] += q[0];
-							sx[1] += q[1];
-							sxy[0] += q[0] * q[0];
-							sxy[1] += q[0] * q[1];
-						}
-						for (int j = stackEnd - numChildren; j <= stackEnd; j++){
-							q = stack[j];
-							tempWeight += ((sx[0] - q[0]) * (sx[1] - q[1]) - sxy[1] + q[0] * q[1]) * q[0] * (q[0] - 1L)
-								+ ((sx[0] - q[0]) * (sx[0] - q[0]) - sxy[0] + q[0] * q[0]) * (q[1] * (q[1] - 1L) / 2 - q[0] * (q[0] - 1L));
-						}
-					}
-					if ((cmd & 16) != 0) weight += tempWeight * queue[++i];
-					else weight += tempWeight;
-				}
-				stackEnd -= numChildren;
-				if ((cmd & 2) != 0){
-					q = stack[stackEnd++];
-					q[0] = treeTotal[0] - p[0];
-					q[1] = treeTotal[1] - p[1];
-				}
-				if ((cmd & 4) != 0){
-					q = list[listEnd++];
-					q[0] = treeTotal[0] - p[0];
-					q[1] = treeTotal[1] - p[1];
-				}
-			}
-			else {
-				int[] p = list[cmd >> 1], q = stack[stackEnd++];
-				q[0] = p[0];
-				q[1] = p[1];
-			}
-		}
-		return weight;
+		return kernel.upperbound(b.getArray());
 	}
 }
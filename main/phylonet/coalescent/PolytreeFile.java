@@ -0,0 +1,131 @@
+package phylonet.coalescent;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import phylonet.tree.model.Tree;
+
+/**
+ * On-disk copy of a compiled polytree: the instruction queue, the list
+ * size and the leaves of each gene tree, with the taxon table they refer
+ * to. This is all weights are computed from, so later runs on the same
+ * gene trees (scoring, placement, bootstrap replicates seen before) load
+ * it instead of building the polytree.
+ *
+ * The file is named after the same fingerprint of the gene trees and
+ * taxa as the {@link WeightStore}, and starts with a version number;
+ * files of another version or for other taxa are ignored. It is
+ * memory-mapped when read.
+ */
+class PolytreeFile {
+
+	private static final int MAGIC = 0x50545431;
+	private static final int VERSION = 1;
+
+	private final File file;
+	private final String key;
+
+	PolytreeFile(File dir, List<Tree> trees) {
+		this.key = WeightStore.fingerprint(trees);
+		this.file = new File(dir, "polytree." + key + ".ptc");
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * The saved polytree, or null if there is none for these gene trees
+	 */
+	Polytree read(String kernelName, int batch) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (in.getInt() != MAGIC || in.getInt() != VERSION || !key.equals(readString(in))) {
+				System.err.println("Ignoring polytree file " + file + " written by another version");
+				return null;
+			}
+			TaxonIdentifier taxa = GlobalMaps.taxonIdentifier;
+			boolean same = in.getInt() == taxa.taxonCount();
+			for (int i = 0; same && i < taxa.taxonCount(); i++) {
+				same = taxa.getTaxonName(i).equals(readString(in));
+			}
+			if (!same) {
+				System.err.println("Ignoring polytree file " + file + " written for other taxa");
+				return null;
+			}
+			int listSize = in.getInt();
+			int[] queue = new int[in.getInt()];
+			long[][] trees = new long[in.getInt()][];
+			in.asIntBuffer().get(queue);
+			in.position(in.position() + 4 * queue.length);
+			for (int t = 0; t < trees.length; t++) {
+				trees[t] = new long[in.getInt()];
+				in.asLongBuffer().get(trees[t]);
+				in.position(in.position() + 8 * trees[t].length);
+			}
+			return new Polytree(queue, listSize, trees, kernelName, batch);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the polytree. A temporary file is renamed at the end, so an
+	 * interrupted run never leaves a partial file.
+	 */
+	void write(Polytree polytree) throws IOException {
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		writeString(out, key);
+		TaxonIdentifier taxa = GlobalMaps.taxonIdentifier;
+		out.writeInt(taxa.taxonCount());
+		for (int i = 0; i < taxa.taxonCount(); i++) {
+			writeString(out, taxa.getTaxonName(i));
+		}
+		long[][] trees = polytree.treeAll;
+		out.writeInt(polytree.listSize);
+		out.writeInt(polytree.queue.length);
+		out.writeInt(trees.length);
+		for (int cmd : polytree.queue) {
+			out.writeInt(cmd);
+		}
+		for (long[] tree : trees) {
+			out.writeInt(tree.length);
+			for (long word : tree) {
+				out.writeLong(word);
+			}
+		}
+		out.close();
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not write polytree file " + file);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(MappedByteBuffer in) throws IOException {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
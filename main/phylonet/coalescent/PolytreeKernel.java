@@ -0,0 +1,441 @@
+package phylonet.coalescent;
+
+/**
+ * The Java version of the polytree weight calculation. It runs the
+ * instruction queue of {@link Polytree} on scratch buffers kept per
+ * thread, so scoring a tripartition does not allocate anything, and the
+ * leaves of each gene tree are kept in one flat array of words.
+ *
+ * Counts (of the three sides of a tripartition) are stored flat: entry
+ * i of the stack or list is at 3 * i for one tripartition. When up to
+ * {@link #lanes} tripartitions are scored in one pass over the queue,
+ * the counts of one side of one entry are next to each other for all
+ * of them, at (3 * i + side) * lanes.
+ *
+ * Other kernels extend this one and override {@link #weights}; see
+ * {@link PolytreeKernels}.
+ */
+class PolytreeKernel {
+
+	/* Largest number of tripartitions scored in one pass over the queue */
+	final int lanes;
+
+	final int[] queue;
+	final int listSize;
+	final int taxa;
+	final int words;
+	/* Leaves of each gene tree, words per tree, and their number */
+	final long[] all;
+	final int[] allSizes;
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	private final class Scratch {
+		final int[] stack = new int[3 * (taxa + 1)];
+		final int[] list = new int[3 * listSize];
+		int[] laneStack, laneList, laneTotals;
+		long[] laneSx, laneSxy, laneWeights, laneTemp;
+
+		void allocateLanes() {
+			if (laneStack == null) {
+				laneStack = new int[3 * (taxa + 1) * lanes];
+				laneList = new int[3 * listSize * lanes];
+				laneTotals = new int[3 * lanes];
+				laneSx = new long[3 * lanes];
+				laneSxy = new long[3 * lanes];
+				laneWeights = new long[lanes];
+				laneTemp = new long[lanes];
+			}
+		}
+	}
+
+	/**
+	 * @param trees the leaves of each gene tree
+	 */
+	PolytreeKernel(int[] queue, int listSize, int taxa, long[][] trees, int lanes) {
+		this.lanes = lanes;
+		this.queue = queue;
+		this.listSize = listSize;
+		this.taxa = taxa;
+		this.words = (taxa - 1) / 64 + 1;
+		this.all = new long[trees.length * words];
+		this.allSizes = new int[trees.length];
+		for (int t = 0; t < trees.length; t++) {
+			for (int k = 0; k < words && k < trees[t].length; k++) {
+				all[t * words + k] = trees[t][k];
+				allSizes[t] += Long.bitCount(trees[t][k]);
+			}
+		}
+	}
+
+	/**
+	 * A kernel for the same polytree, scoring the given number of
+	 * tripartitions at once
+	 */
+	PolytreeKernel(PolytreeKernel polytree, int lanes) {
+		this.lanes = lanes;
+		this.queue = polytree.queue;
+		this.listSize = polytree.listSize;
+		this.taxa = polytree.taxa;
+		this.words = polytree.words;
+		this.all = polytree.all;
+		this.allSizes = polytree.allSizes;
+	}
+
+	/**
+	 * The name of the kernel, as given to --kernel
+	 */
+	String name() {
+		return PolytreeKernels.BATCHED;
+	}
+
+	/**
+	 * Largest number of tripartitions given to {@link #weights} at once
+	 */
+	int lanes() {
+		return lanes;
+	}
+
+	/**
+	 * Bytes of scratch memory used by each thread
+	 */
+	long scratchBytes() {
+		return 12L * (taxa + 1 + listSize) * (lanes + 1);
+	}
+
+	/**
+	 * Frees the scratch memory of the calling thread
+	 */
+	void release() {
+		scratch.remove();
+	}
+
+	static int bit(long[] b, int i) {
+		int w = i >> 6;
+		return w < b.length ? (int) (b[w] >>> i) & 1 : 0;
+	}
+
+	private int intersectionSize(long[] b, int tree) {
+		int sum = 0, off = tree * words;
+		for (int k = Math.min(b.length, words) - 1; k >= 0; k--) {
+			sum += Long.bitCount(b[k] & all[off + k]);
+		}
+		return sum;
+	}
+
+	/* Weight of a binary node with the counts of its three sides at x, y and z */
+	private static long F(int[] s, int x, int y, int z) {
+		long a = s[x], b = s[x + 1], c = s[x + 2], d = s[y], e = s[y + 1], f = s[y + 2],
+			g = s[z], h = s[z + 1], i = s[z + 2];
+		return a * ((a + e + i - 3l) * e * i + (a + f + h - 3l) * f * h)
+			 + b * ((b + d + i - 3l) * d * i + (b + f + g - 3l) * f * g)
+			 + c * ((c + d + h - 3l) * d * h + (c + e + g - 3l) * e * g);
+	}
+
+	/* Same as F, for the lane at x, y and z with sides n apart */
+	private static long F(int[] s, int x, int y, int z, int n) {
+		long a = s[x], b = s[x + n], c = s[x + 2 * n], d = s[y], e = s[y + n], f = s[y + 2 * n],
+			g = s[z], h = s[z + n], i = s[z + 2 * n];
+		return a * ((a + e + i - 3l) * e * i + (a + f + h - 3l) * f * h)
+			 + b * ((b + d + i - 3l) * d * i + (b + f + g - 3l) * f * g)
+			 + c * ((c + d + h - 3l) * d * h + (c + e + g - 3l) * e * g);
+	}
+
+	/* Bound of a binary node with the counts of its sides (cluster, all) at x, y and z */
+	private static long U(int[] s, int x, int y, int z) {
+		long a = s[x], d = s[x + 1], b = s[y], e = s[y + 1], c = s[z], f = s[z + 1], t = a + b + c - 3;
+		return ((t - c + f) * b * f + (t - b + e) * e * c) * a + ((t - a + d) * d - 2 * t * a) * b * c;
+	}
+
+	/**
+	 * Weight of the tripartition with the given words for its three sides
+	 */
+	long weight(long[] b0, long[] b1, long[] b2) {
+		Scratch s = scratch.get();
+		int[] stack = s.stack, list = s.list;
+		int[] queue = this.queue;
+		long weight = 0;
+		int t0 = 0, t1 = 0, t2 = 0, tree = 0;
+		int stackEnd = 0, listEnd = taxa;
+		for (int i = 0; i < taxa; i++) {
+			list[3 * i] = bit(b0, i);
+			list[3 * i + 1] = bit(b1, i);
+			list[3 * i + 2] = bit(b2, i);
+		}
+		for (int i = 0, i_end = queue.length; i < i_end; i++) {
+			int cmd = queue[i];
+			if (cmd == -1) {
+				t0 = intersectionSize(b0, tree);
+				t1 = intersectionSize(b1, tree);
+				t2 = intersectionSize(b2, tree);
+				tree++;
+				continue;
+			}
+			if ((cmd & 1) != 0) {
+				int numChildren = cmd >> 5;
+				int p0 = t0, p1 = t1, p2 = t2;
+				for (int q = 3 * (stackEnd - numChildren); q < 3 * stackEnd; q += 3) {
+					p0 -= stack[q];
+					p1 -= stack[q + 1];
+					p2 -= stack[q + 2];
+				}
+				int p = 3 * stackEnd;
+				stack[p] = p0;
+				stack[p + 1] = p1;
+				stack[p + 2] = p2;
+				if ((cmd & 8) != 0) {
+					long tempWeight = 0;
+					if (numChildren == 2) {
+						tempWeight = F(stack, p - 6, p - 3, p);
+					} else {
+						long sx0 = 0, sx1 = 0, sx2 = 0, sxy0 = 0, sxy1 = 0, sxy2 = 0;
+						for (int q = 3 * (stackEnd - numChildren); q <= p; q += 3) {
+							long x = stack[q], y = stack[q + 1], z = stack[q + 2];
+							sx0 += x;
+							sx1 += y;
+							sx2 += z;
+							sxy0 += y * z;
+							sxy1 += z * x;
+							sxy2 += x * y;
+						}
+						for (int q = 3 * (stackEnd - numChildren); q <= p; q += 3) {
+							long x = stack[q], y = stack[q + 1], z = stack[q + 2];
+							tempWeight += ((sx1 - y) * (sx2 - z) - sxy0 + y * z) * x * (x - 1L)
+								+ ((sx2 - z) * (sx0 - x) - sxy1 + z * x) * y * (y - 1L)
+								+ ((sx0 - x) * (sx1 - y) - sxy2 + x * y) * z * (z - 1L);
+						}
+					}
+					if ((cmd & 16) != 0) weight += tempWeight * queue[++i];
+					else weight += tempWeight;
+				}
+				stackEnd -= numChildren;
+				if ((cmd & 2) != 0) {
+					int q = 3 * stackEnd++;
+					stack[q] = t0 - p0;
+					stack[q + 1] = t1 - p1;
+					stack[q + 2] = t2 - p2;
+				}
+				if ((cmd & 4) != 0) {
+					int q = 3 * listEnd++;
+					list[q] = t0 - p0;
+					list[q + 1] = t1 - p1;
+					list[q + 2] = t2 - p2;
+				}
+			} else {
+				int p = 3 * (cmd >> 1), q = 3 * stackEnd++;
+				stack[q] = list[p];
+				stack[q + 1] = list[p + 1];
+				stack[q + 2] = list[p + 2];
+			}
+		}
+		return weight;
+	}
+
+	/**
+	 * Weights of the tripartitions from to from + count (at most
+	 * {@link #lanes()}) of the given sides into weights, in one pass over
+	 * the queue
+	 */
+	void weights(long[][] b0, long[][] b1, long[][] b2, long[] weights, int from, int count) {
+		Scratch s = scratch.get();
+		s.allocateLanes();
+		int[] stack = s.laneStack, list = s.laneList, totals = s.laneTotals;
+		long[] sx = s.laneSx, sxy = s.laneSxy, weight = s.laneWeights, temp = s.laneTemp;
+		int[] queue = this.queue;
+		final int n = lanes;
+		int stackEnd = 0, listEnd = taxa, tree = 0;
+		for (int l = 0; l < count; l++) {
+			long[] x = b0[from + l], y = b1[from + l], z = b2[from + l];
+			for (int i = 0; i < taxa; i++) {
+				int q = 3 * i * n + l;
+				list[q] = bit(x, i);
+				list[q + n] = bit(y, i);
+				list[q + 2 * n] = bit(z, i);
+			}
+			weight[l] = 0;
+		}
+		for (int i = 0, i_end = queue.length; i < i_end; i++) {
+			int cmd = queue[i];
+			if (cmd == -1) {
+				for (int l = 0; l < count; l++) {
+					totals[l] = intersectionSize(b0[from + l], tree);
+					totals[l + n] = intersectionSize(b1[from + l], tree);
+					totals[l + 2 * n] = intersectionSize(b2[from + l], tree);
+				}
+				tree++;
+				continue;
+			}
+			if ((cmd & 1) != 0) {
+				int numChildren = cmd >> 5;
+				int p = 3 * stackEnd * n;
+				System.arraycopy(totals, 0, stack, p, 3 * n);
+				for (int q = 3 * (stackEnd - numChildren) * n; q < p; q += 3 * n) {
+					for (int l = 0; l < 3 * n; l++) {
+						stack[p + l] -= stack[q + l];
+					}
+				}
+				if ((cmd & 8) != 0) {
+					if (numChildren == 2) {
+						for (int l = 0; l < count; l++) {
+							temp[l] = F(stack, p - 6 * n + l, p - 3 * n + l, p + l, n);
+						}
+					} else {
+						for (int l = 0; l < 3 * n; l++) {
+							sx[l] = 0;
+							sxy[l] = 0;
+						}
+						for (int q = 3 * (stackEnd - numChildren) * n; q <= p; q += 3 * n) {
+							for (int l = 0; l < count; l++) {
+								long x = stack[q + l], y = stack[q + n + l], z = stack[q + 2 * n + l];
+								sx[l] += x;
+								sx[l + n] += y;
+								sx[l + 2 * n] += z;
+								sxy[l] += y * z;
+								sxy[l + n] += z * x;
+								sxy[l + 2 * n] += x * y;
+							}
+						}
+						for (int l = 0; l < count; l++) {
+							temp[l] = 0;
+						}
+						for (int q = 3 * (stackEnd - numChildren) * n; q <= p; q += 3 * n) {
+							for (int l = 0; l < count; l++) {
+								long x = stack[q + l], y = stack[q + n + l], z = stack[q + 2 * n + l];
+								long sx0 = sx[l], sx1 = sx[l + n], sx2 = sx[l + 2 * n];
+								temp[l] += ((sx1 - y) * (sx2 - z) - sxy[l] + y * z) * x * (x - 1L)
+									+ ((sx2 - z) * (sx0 - x) - sxy[l + n] + z * x) * y * (y - 1L)
+									+ ((sx0 - x) * (sx1 - y) - sxy[l + 2 * n] + x * y) * z * (z - 1L);
+							}
+						}
+					}
+					long times = (cmd & 16) != 0 ? queue[++i] : 1;
+					for (int l = 0; l < count; l++) {
+						weight[l] += temp[l] * times;
+					}
+				}
+				stackEnd -= numChildren;
+				if ((cmd & 2) != 0) {
+					int q = 3 * stackEnd++ * n;
+					for (int l = 0; l < 3 * n; l++) {
+						stack[q + l] = totals[l] - stack[p + l];
+					}
+				}
+				if ((cmd & 4) != 0) {
+					int q = 3 * listEnd++ * n;
+					for (int l = 0; l < 3 * n; l++) {
+						list[q + l] = totals[l] - stack[p + l];
+					}
+				}
+			} else {
+				System.arraycopy(list, 3 * (cmd >> 1) * n, stack, 3 * stackEnd++ * n, 3 * n);
+			}
+		}
+		System.arraycopy(weight, 0, weights, from, count);
+	}
+
+	/**
+	 * Largest weight of a tripartition with the given cluster as a side
+	 */
+	long upperbound(long[] b) {
+		Scratch s = scratch.get();
+		int[] stack = s.stack, list = s.list;
+		int[] queue = this.queue;
+		long weight = 0;
+		int t0 = 0, t1 = 0, tree = 0;
+		int stackEnd = 0, listEnd = taxa;
+		for (int i = 0; i < taxa; i++) {
+			list[2 * i] = bit(b, i);
+			list[2 * i + 1] = 1;
+		}
+		for (int i = 0, i_end = queue.length; i < i_end; i++) {
+			int cmd = queue[i];
+			if (cmd == -1) {
+				t0 = intersectionSize(b, tree);
+				t1 = allSizes[tree];
+				tree++;
+				continue;
+			}
+			if ((cmd & 1) != 0) {
+				int numChildren = cmd >> 5;
+				int p0 = t0, p1 = t1;
+				for (int q = 2 * (stackEnd - numChildren); q < 2 * stackEnd; q += 2) {
+					p0 -= stack[q];
+					p1 -= stack[q + 1];
+				}
+				int p = 2 * stackEnd;
+				stack[p] = p0;
+				stack[p + 1] = p1;
+				if ((cmd & 8) != 0) {
+					long tempWeight = 0;
+					if (numChildren == 2) {
+						tempWeight = U(stack, p - 4, p - 2, p);
+					} else {
+						long sx0 = 0, sx1 = 0, sxy0 = 0, sxy1 = 0;
+						for (int q = 2 * (stackEnd - numChildren); q <= p; q += 2) {
+							long x = stack[q], y = stack[q + 1];
+							sx0 += x;
+							sx1 += y;
+							sxy0 += x * x;
+							sxy1 += x * y;
+						}
+						for (int q = 2 * (stackEnd - numChildren); q <= p; q += 2) {
+							long x = stack[q], y = stack[q + 1];
+							tempWeight += ((sx0 - x) * (sx1 - y) - sxy1 + x * y) * x * (x - 1L)
+								+ ((sx0 - x) * (sx0 - x) - sxy0 + x * x) * (y * (y - 1L) / 2 - x * (x - 1L));
+						}
+					}
+					if ((cmd & 16) != 0) weight += tempWeight * queue[++i];
+					else weight += tempWeight;
+				}
+				stackEnd -= numChildren;
+				if ((cmd & 2) != 0) {
+					int q = 2 * stackEnd++;
+					stack[q] = t0 - p0;
+					stack[q + 1] = t1 - p1;
+				}
+				if ((cmd & 4) != 0) {
+					int q = 2 * listEnd++;
+					list[q] = t0 - p0;
+					list[q + 1] = t1 - p1;
+				}
+			} else {
+				int p = 2 * (cmd >> 1), q = 2 * stackEnd++;
+				stack[q] = list[p];
+				stack[q + 1] = list[p + 1];
+			}
+		}
+		return weight;
+	}
+
+	/**
+	 * Scores the tripartitions one at a time
+	 */
+	static class Scalar extends PolytreeKernel {
+
+		Scalar(PolytreeKernel polytree) {
+			super(polytree, 1);
+		}
+
+		@Override
+		String name() {
+			return PolytreeKernels.SCALAR;
+		}
+
+		@Override
+		long scratchBytes() {
+			return 12L * (taxa + 1 + listSize);
+		}
+
+		@Override
+		void weights(long[][] b0, long[][] b1, long[][] b2, long[] weights, int from, int count) {
+			for (int l = from; l < from + count; l++) {
+				weights[l] = weight(b0[l], b1[l], b2[l]);
+			}
+		}
+	}
+}
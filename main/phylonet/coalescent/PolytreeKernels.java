@@ -0,0 +1,359 @@
+package phylonet.coalescent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The kernels that compute tripartition weights from the polytree, and
+ * the choice of one of them. Each candidate (a kernel with a batch size)
+ * first scores a few fixed random tripartitions, which must get the same
+ * weights as with the scalar Java code; the native library, for
+ * instance, may be built for another version or machine.
+ *
+ * If several candidates pass, the run starts with one of them (native if
+ * it passed) and times all of them on the same tripartitions once it has
+ * computed {@link #CALIBRATE_AFTER} weights; the fastest is used from
+ * then on. Runs that compute fewer weights (scoring a tree, placing a few
+ * species) never pay for the timing. The choice is kept for the rest of
+ * the process, for polytrees over the same number of taxa (placing
+ * species one after the other, for instance, checks the kernels once).
+ */
+class PolytreeKernels {
+
+	static final String AUTO = "auto";
+	static final String SCALAR = "scalar";
+	static final String BATCHED = "batched";
+	static final String NATIVE = "native";
+	static final String[] NAMES = {SCALAR, BATCHED, NATIVE};
+
+	/* Number of tripartitions used to check the kernels */
+	private static final int CHECKS = 16;
+	/* Number of tripartitions used to time the kernels */
+	private static final int SAMPLES = 64;
+	/* Time (in milliseconds) each kernel runs before it is timed, so it is compiled */
+	private static final int WARMUP = 100;
+	/* Weights computed before the candidates are timed */
+	static final long CALIBRATE_AFTER = 1L << 15;
+	/* Largest scratch memory per thread of a kernel tried without being asked for */
+	private static final long MAX_SCRATCH = 1L << 26;
+
+	/* Whether the native library failed to load (reported once) */
+	private static boolean nativeFailed = false;
+
+	/*
+	 * For polytrees over the same number of taxa and the same request, the kernels
+	 * (name and batch size) that passed the checks, and the one chosen
+	 */
+	private static final Map<String, List<String[]>> passed = new HashMap<String, List<String[]>>();
+	private static final Map<String, String[]> chosen = new HashMap<String, String[]>();
+
+	/**
+	 * Batch sizes tried for a kernel when none is given
+	 */
+	private static int[] batchSizes(String name) {
+		if (SCALAR.equals(name)) {
+			return new int[]{1};
+		}
+		if (BATCHED.equals(name)) {
+			return new int[]{16, 32};
+		}
+		return new int[]{32, 64};
+	}
+
+	static boolean isKernel(String name) {
+		if (AUTO.equals(name)) {
+			return true;
+		}
+		for (String n : NAMES) {
+			if (n.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The kernel to use for the polytree
+	 * @param polytree the scalar Java kernel
+	 * @param trees the leaves of each gene tree
+	 * @param requested a kernel name or {@link #AUTO}
+	 * @param batch the batch size, or 0 to find the best one
+	 */
+	static PolytreeKernel choose(PolytreeKernel polytree, long[][] trees, String requested, int batch) {
+		String key = polytree.taxa + " " + requested + " " + batch;
+		String[] previous;
+		List<String[]> checked;
+		synchronized (chosen) {
+			previous = chosen.get(key);
+			checked = passed.get(key);
+		}
+		if (previous != null && (!NATIVE.equals(previous[0]) || loadNative(polytree, trees))) {
+			PolytreeKernel kernel = create(previous[0], polytree, Integer.parseInt(previous[1]));
+			System.err.println("Using kernel " + describe(kernel) + " for tripartition weights (chosen before).");
+			return kernel;
+		}
+		List<PolytreeKernel> candidates = new ArrayList<PolytreeKernel>();
+		if (checked != null) {
+			for (String[] c : checked) {
+				if (!NATIVE.equals(c[0]) || loadNative(polytree, trees)) {
+					candidates.add(create(c[0], polytree, Integer.parseInt(c[1])));
+				}
+			}
+		} else {
+			candidates = check(polytree, trees, requested, batch);
+			List<String[]> names = new ArrayList<String[]>();
+			for (PolytreeKernel kernel : candidates) {
+				names.add(new String[]{kernel.name(), Integer.toString(kernel.lanes())});
+			}
+			synchronized (chosen) {
+				passed.put(key, names);
+			}
+		}
+		if (candidates.isEmpty()) {
+			System.err.println("Kernel " + requested + " cannot be used; choosing another one.");
+			return choose(polytree, trees, AUTO, 0);
+		}
+		if (candidates.size() == 1) {
+			remember(key, candidates.get(0));
+			System.err.println("Using kernel " + describe(candidates.get(0)) + " for tripartition weights.");
+			return candidates.get(0);
+		}
+
+		PolytreeKernel first = candidates.get(0);
+		for (PolytreeKernel kernel : candidates) {
+			if (NATIVE.equals(kernel.name()) && !NATIVE.equals(first.name())
+					|| BATCHED.equals(kernel.name()) && SCALAR.equals(first.name())) {
+				first = kernel;
+			}
+		}
+		System.err.println("Using kernel " + describe(first) + " for tripartition weights; "
+				+ candidates.size() + " kernels are timed after " + CALIBRATE_AFTER + " weights.");
+		return new Calibrating(polytree, key, candidates, first);
+	}
+
+	/**
+	 * The requested kernels that give the same weights as the scalar code
+	 * on a few samples
+	 */
+	private static List<PolytreeKernel> check(PolytreeKernel polytree, long[][] trees, String requested, int batch) {
+		long[][][] sides = sampleTripartitions(polytree.taxa, CHECKS);
+		long[] expected = new long[CHECKS];
+		for (int j = 0; j < CHECKS; j++) {
+			expected[j] = polytree.weight(sides[0][j], sides[1][j], sides[2][j]);
+		}
+
+		List<PolytreeKernel> candidates = new ArrayList<PolytreeKernel>();
+		for (String name : NAMES) {
+			if (!AUTO.equals(requested) && !name.equals(requested)) {
+				continue;
+			}
+			if (NATIVE.equals(name) && !loadNative(polytree, trees)) {
+				continue;
+			}
+			for (int size : batch > 0 && !SCALAR.equals(name) ? new int[]{batch} : batchSizes(name)) {
+				PolytreeKernel kernel = create(name, polytree, size);
+				if (batch == 0 && kernel.scratchBytes() > MAX_SCRATCH && !SCALAR.equals(name)) {
+					continue;
+				}
+				if (matches(kernel, sides, expected)) {
+					candidates.add(kernel);
+				} else {
+					System.err.println("Kernel " + describe(kernel) + " gives wrong weights; not used.");
+					kernel.release();
+				}
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Loads the native library and gives it the polytree; false (reported
+	 * once) if it cannot be used
+	 */
+	private static boolean loadNative(PolytreeKernel polytree, long[][] trees) {
+		if (nativeFailed) {
+			return false;
+		}
+		try {
+			NativePolytreeKernel.load(polytree, trees);
+			return true;
+		} catch (Throwable e) {
+			System.err.println("Native library " + System.mapLibraryName("Astral")
+					+ " cannot be used: " + e.getMessage());
+			nativeFailed = true;
+			return false;
+		}
+	}
+
+	private static void remember(String key, PolytreeKernel kernel) {
+		synchronized (chosen) {
+			chosen.put(key, new String[]{kernel.name(), Integer.toString(kernel.lanes())});
+		}
+	}
+
+	/**
+	 * The fastest of the candidates, timed twice on the same samples (the
+	 * first round mostly gives the compiler time to finish)
+	 */
+	private static PolytreeKernel fastest(List<PolytreeKernel> candidates) {
+		long[][][] sides = sampleTripartitions(candidates.get(0).taxa, SAMPLES);
+		double[] times = new double[candidates.size()];
+		Arrays.fill(times, Double.MAX_VALUE);
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < times.length; i++) {
+				times[i] = Math.min(times[i], time(candidates.get(i), sides));
+			}
+		}
+		PolytreeKernel best = null;
+		double bestTime = Double.MAX_VALUE;
+		for (int i = 0; i < times.length; i++) {
+			System.err.println(String.format("Kernel %s: %.1f microseconds per weight", describe(candidates.get(i)), times[i]));
+			if (times[i] < bestTime) {
+				bestTime = times[i];
+				best = candidates.get(i);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Scores with one of the candidates until {@link #CALIBRATE_AFTER}
+	 * weights are computed, then times them all and switches to the
+	 * fastest. Threads that are scoring during the timing go on with the
+	 * kernel they started with.
+	 */
+	private static class Calibrating extends PolytreeKernel {
+
+		private final String key;
+		private final List<PolytreeKernel> candidates;
+		private volatile PolytreeKernel current;
+		private volatile boolean calibrated = false;
+		private final AtomicLong computed = new AtomicLong();
+
+		Calibrating(PolytreeKernel polytree, String key, List<PolytreeKernel> candidates, PolytreeKernel first) {
+			super(polytree, first.lanes());
+			this.key = key;
+			this.candidates = candidates;
+			this.current = first;
+		}
+
+		@Override
+		String name() {
+			return current.name();
+		}
+
+		@Override
+		int lanes() {
+			return current.lanes();
+		}
+
+		@Override
+		long scratchBytes() {
+			return current.scratchBytes();
+		}
+
+		@Override
+		void release() {
+			for (PolytreeKernel kernel : candidates) {
+				kernel.release();
+			}
+			super.release();
+		}
+
+		@Override
+		void weights(long[][] b0, long[][] b1, long[][] b2, long[] weights, int from, int count) {
+			PolytreeKernel kernel = current;
+			for (int i = from; i < from + count; i += kernel.lanes()) {
+				kernel.weights(b0, b1, b2, weights, i, Math.min(kernel.lanes(), from + count - i));
+			}
+			if (!calibrated && computed.addAndGet(count) >= CALIBRATE_AFTER) {
+				calibrate();
+			}
+		}
+
+		private synchronized void calibrate() {
+			if (calibrated) {
+				return;
+			}
+			PolytreeKernel best = fastest(candidates);
+			current = best;
+			calibrated = true;
+			remember(key, best);
+			System.err.println("Using kernel " + describe(best) + " for tripartition weights.");
+		}
+	}
+
+	private static PolytreeKernel create(String name, PolytreeKernel polytree, int batch) {
+		if (SCALAR.equals(name)) {
+			return new PolytreeKernel.Scalar(polytree);
+		}
+		if (BATCHED.equals(name)) {
+			return new PolytreeKernel(polytree, batch);
+		}
+		return new NativePolytreeKernel(polytree, batch);
+	}
+
+	private static String describe(PolytreeKernel kernel) {
+		return kernel.name() + " (batch " + kernel.lanes() + ")";
+	}
+
+	/**
+	 * Random tripartitions of all taxa (always the same ones), as the
+	 * words of their three sides
+	 */
+	static long[][][] sampleTripartitions(int taxa, int count) {
+		long[][][] sides = new long[3][count][(taxa - 1) / 64 + 1];
+		Random random = new Random(taxa);
+		for (int j = 0; j < count; j++) {
+			for (int i = 0; i < taxa; i++) {
+				sides[random.nextInt(3)][j][i >> 6] |= 1L << i;
+			}
+		}
+		return sides;
+	}
+
+	private static void weights(PolytreeKernel kernel, long[][][] sides, long[] weights) {
+		for (int j = 0; j < weights.length; j += kernel.lanes()) {
+			kernel.weights(sides[0], sides[1], sides[2], weights, j, Math.min(kernel.lanes(), weights.length - j));
+		}
+	}
+
+	private static boolean matches(PolytreeKernel kernel, long[][][] sides, long[] expected) {
+		long[] weights = new long[expected.length];
+		try {
+			weights(kernel, sides, weights);
+		} catch (Throwable e) {
+			return false;
+		}
+		for (int j = 0; j < expected.length; j++) {
+			if (weights[j] != expected[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Best time (in microseconds per weight) of a few runs on the samples,
+	 * after running them for {@link #WARMUP} milliseconds
+	 */
+	private static double time(PolytreeKernel kernel, long[][][] sides) {
+		long[] weights = new long[SAMPLES];
+		long start = System.currentTimeMillis();
+		while (System.currentTimeMillis() - start < WARMUP) {
+			weights(kernel, sides, weights);
+		}
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < 3; run++) {
+			long t = System.nanoTime();
+			weights(kernel, sides, weights);
+			best = Math.min(best, System.nanoTime() - t);
+		}
+		return best / 1000.0 / SAMPLES;
+	}
+}
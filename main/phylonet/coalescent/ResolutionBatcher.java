@@ -0,0 +1,172 @@
+package phylonet.coalescent;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import phylonet.coalescent.IClusterCollection.VertexPair;
+
+/**
+ * Weights for the single-pass DP. The DP visits clusters in postorder and
+ * hands over the resolutions of each cluster once its sub-clusters are
+ * visited; their tripartitions are written into slabs (shared across
+ * clusters) that are scored on the worker threads while the DP goes on.
+ * Clusters are finished (best resolution chosen) in the order they were
+ * added, on the DP thread, so a cluster is always finished after its
+ * sub-clusters.
+ *
+ * The tripartition of a resolution is its two sides and the complement
+ * of the cluster, as in {@link WQComputeMinCostTask}. Slabs are written
+ * directly from the cluster bits and reused, so scoring does not create
+ * any objects per tripartition.
+ */
+class ResolutionBatcher {
+
+	/* Number of tripartitions scored together by one thread */
+	private static final int CHUNK = 64;
+	/* Largest number of weights waiting to be used by the DP */
+	private static final int MAX_PENDING = 1 << 20;
+
+	private WQWeightCalculator weightCalculator;
+	private ArrayDeque<Cluster> pending = new ArrayDeque<Cluster>();
+	private int pendingWeights = 0;
+
+	private ConcurrentLinkedQueue<Chunk> pool = new ConcurrentLinkedQueue<Chunk>();
+	private Chunk chunk = null;
+
+	private volatile RuntimeException error = null;
+
+	/**
+	 * The resolutions of one cluster, waiting for their weights
+	 */
+	private static class Cluster {
+		AbstractComputeMinCostTask<?> task;
+		long clusterLevelCost;
+		List<VertexPair> pairs;
+		long[] weights;
+		int computed = 0;
+		CountDownLatch ready;
+	}
+
+	/**
+	 * A slab and, for each of its rows, where the weight goes
+	 */
+	private static class Chunk {
+		TripartitionSlab slab = new TripartitionSlab(CHUNK);
+		long[][] targets = new long[CHUNK][];
+		int[] positions = new int[CHUNK];
+		CountDownLatch[] latches = new CountDownLatch[CHUNK];
+	}
+
+	ResolutionBatcher(WQWeightCalculator weightCalculator) {
+		this.weightCalculator = weightCalculator;
+	}
+
+	/**
+	 * Queues the resolutions of a cluster. The weight is given for the
+	 * cluster of all taxa; otherwise (null) weights are computed.
+	 */
+	void add(AbstractComputeMinCostTask<?> task, long clusterLevelCost,
+			List<VertexPair> pairs, Long weight) {
+		Cluster c = new Cluster();
+		c.task = task;
+		c.clusterLevelCost = clusterLevelCost;
+		c.pairs = pairs;
+		c.weights = new long[pairs.size()];
+		if (weight != null) {
+			for (int i = 0; i < c.weights.length; i++) {
+				c.weights[i] = weight;
+			}
+			c.ready = new CountDownLatch(0);
+		} else {
+			c.ready = new CountDownLatch(pairs.size());
+			for (int i = 0; i < pairs.size(); i++) {
+				if (chunk == null) {
+					chunk = pool.poll();
+					if (chunk == null) {
+						chunk = new Chunk();
+					}
+				}
+				VertexPair bi = pairs.get(i);
+				int row = chunk.slab.count;
+				chunk.slab.add(bi.cluster1.getCluster().getBitSet(),
+						bi.cluster2.getCluster().getBitSet(), bi.both.getCluster().getBitSet());
+				chunk.targets[row] = c.weights;
+				chunk.positions[row] = i;
+				chunk.latches[row] = c.ready;
+				if (chunk.slab.isFull()) {
+					submitChunk();
+				}
+			}
+			c.computed = pairs.size();
+			pendingWeights += c.computed;
+		}
+		pending.add(c);
+
+		while (!pending.isEmpty() && pending.peek().ready.getCount() == 0) {
+			finish(pending.poll());
+		}
+		while (pendingWeights > MAX_PENDING) {
+			submitChunk();
+			finish(pending.poll());
+		}
+	}
+
+	/**
+	 * Waits for all weights and finishes all remaining clusters
+	 */
+	void finish() {
+		submitChunk();
+		while (!pending.isEmpty()) {
+			finish(pending.poll());
+		}
+	}
+
+	private void finish(Cluster c) {
+		try {
+			c.ready.await();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if (error != null) {
+			throw error;
+		}
+		for (int i = 0; i < c.weights.length; i++) {
+			VertexPair bi = c.pairs.get(i);
+			c.task.addResolution(bi.cluster1, bi.cluster2, c.clusterLevelCost, c.weights[i]);
+		}
+		pendingWeights -= c.computed;
+		weightCalculator.countWeights(c.computed);
+	}
+
+	private void submitChunk() {
+		if (chunk == null) {
+			return;
+		}
+		final Chunk full = chunk;
+		chunk = null;
+		Threading.execute(new Runnable() {
+			public void run() {
+				TripartitionSlab slab = full.slab;
+				try {
+					weightCalculator.calculateWeights(slab);
+					for (int i = 0; i < slab.count; i++) {
+						full.targets[i][full.positions[i]] = slab.weights[i];
+					}
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					error = e;
+				} finally {
+					for (int i = 0; i < slab.count; i++) {
+						full.latches[i].countDown();
+						full.targets[i] = null;
+						full.latches[i] = null;
+					}
+					slab.clear();
+					pool.add(full);
+				}
+			}
+		});
+	}
+}
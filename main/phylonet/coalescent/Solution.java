@@ -19,7 +19,13 @@ public class Solution
         return _totalCoals;
     }
 
+    public String getBranchLabel()
+    {
+        return _branchLabel;
+    }
+
     Tree _st;
     Long _totalCoals;
     int _clusterIDs[];
+    String _branchLabel;
 }
\ No newline at end of file
@@ -38,6 +38,10 @@ public class Threading {
 		
 	}
 
+	public static boolean hasGPU() {
+		return usedDevices != null && usedDevices.length > 0;
+	}
+
 	public static int getNumThreads() {
 		return numThreads;
 	}
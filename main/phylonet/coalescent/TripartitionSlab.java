@@ -0,0 +1,64 @@
+package phylonet.coalescent;
+
+import phylonet.util.BitSet;
+
+/**
+ * A reusable batch of tripartitions stored as the words of their three
+ * clusters, ready to be scored without building {@link Tripartition}
+ * objects. Each row has exactly the number of words used by the native
+ * weight calculation.
+ */
+class TripartitionSlab {
+
+	final long[][] first;
+	final long[][] second;
+	final long[][] third;
+	final long[] weights;
+	int count = 0;
+
+	private final int taxa;
+	private final int words;
+
+	TripartitionSlab(int capacity) {
+		this.taxa = GlobalMaps.taxonIdentifier.taxonCount();
+		this.words = (taxa - 1) / 64 + 1;
+		this.first = new long[capacity][words];
+		this.second = new long[capacity][words];
+		this.third = new long[capacity][words];
+		this.weights = new long[capacity];
+	}
+
+	boolean isFull() {
+		return count == weights.length;
+	}
+
+	/**
+	 * Adds the tripartition of a cluster (given by its bits) divided into
+	 * two clusters: the two sides and the complement of the cluster
+	 */
+	void add(BitSet side1, BitSet side2, BitSet cluster) {
+		copy(side1.getArray(), first[count]);
+		copy(side2.getArray(), second[count]);
+		long[] c = cluster.getArray();
+		long[] row = third[count];
+		for (int k = 0; k < words; k++) {
+			row[k] = k < c.length ? ~c[k] : ~0L;
+		}
+		if (taxa % 64 != 0) {
+			row[words - 1] &= (1L << (taxa % 64)) - 1;
+		}
+		count++;
+	}
+
+	private void copy(long[] from, long[] to) {
+		int n = Math.min(from.length, words);
+		System.arraycopy(from, 0, to, 0, n);
+		for (int k = n; k < words; k++) {
+			to[k] = 0;
+		}
+	}
+
+	void clear() {
+		count = 0;
+	}
+}
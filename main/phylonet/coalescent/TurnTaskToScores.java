@@ -21,7 +21,6 @@ import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -47,17 +46,14 @@ public class TurnTaskToScores implements Runnable {
 	private static int nextLog = 0;
 	private static long timer3;
 
-	final PriorityBlockingQueue<ComparablePair<Long, Integer>> queue2Helper;
-	final LinkedBlockingQueue<Long> queueWeightResults;
+	final WeightRing queueWeightResults;
 	final LinkedBlockingQueue<Tripartition> tripartitionsQueue;
 	final AbstractWeightCalculator<Tripartition> wqWeightCalculator;
 	final AbstractInference<Tripartition> inference;
 	final WQDataCollection dataCollection;
 	
 	AtomicInteger threadCount = new AtomicInteger(0);
-	Object positionOutLock = new Object();
 	
-	private int positionOut = 0;
 	private int positionIn = 0;
 	
 	int tripCounter = 0;
@@ -76,7 +72,6 @@ public class TurnTaskToScores implements Runnable {
 		this.tripartitionsQueue = queue1;
 		this.queueWeightResults = inf.getQueueWeightResults();
 		
-		this.queue2Helper = new PriorityBlockingQueue<ComparablePair<Long, Integer>>();
 		this.speciesWordLength = (GlobalMaps.taxonIdentifier.taxonCount() / 64 + 1);
 		
 		//System.err.println("global work group size is : " + workGroupSize);
@@ -202,28 +197,17 @@ public class TurnTaskToScores implements Runnable {
 			Threading.execute(new CPUCalculationThread(tripsForCPU, tripsForCPULabel, tripsForCPUCounter, this.inference.weightCalculator));
 		}
 
-		try {
-			queue2Helper.offer(new ComparablePair<Long, Integer>(-23L, positionIn++));
-			// random  specific number used as a "poison pill" for AbstractWeightCalculator
-			System.err.println(positionIn + " " + positionOut + " " + queue2Helper.peek().value.intValue());
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		synchronized (positionOutLock) {
-			while (!queue2Helper.isEmpty() && positionOut == queue2Helper.peek().value.intValue()
-					&& queueWeightResults.add(queue2Helper.remove().key)) {
-				positionOut++;
-			}
-
-			logWeights();
-		}
+		// random  specific number used as a "poison pill" for AbstractWeightCalculator
+		queueWeightResults.put(positionIn++, -23L);
+		logWeights();
 
 		//GlobalMaps.logTimeMessage("Time used to wait on queue1.take() with at least one gpu available: "
 		//		+ (double) (timeWait) / 1000000000+"\nTurnTaskToScores:199: ");
 
 	}
 
-	public void logWeights() {
+	public synchronized void logWeights() {
+		long positionOut = queueWeightResults.taken();
 		if (nextLog == 0) {
 			timer3 = System.currentTimeMillis();
 			nextLog += LOG_FREQ;
@@ -471,17 +455,7 @@ public class TurnTaskToScores implements Runnable {
 							Sizeof.cl_long * weightArray[deviceIndex].length, Pointer.to(weightArray[deviceIndex]), 0,
 							null, null);
 					for (int i = 0; i < workSize; i++) {
-						queue2Helper.offer(
-								new ComparablePair<Long, Integer>(weightArray[deviceIndex][i], label[labelIndex][deviceIndex][i]));
-						// System.out.println("I have been here!" +
-						// queue2Helper.peek().value + " " + positionOut);
-
-					}
-					synchronized (positionOutLock) {
-						while (!queue2Helper.isEmpty() && positionOut == queue2Helper.peek().value.intValue()
-								&& queueWeightResults.add(queue2Helper.remove().key)) {
-							positionOut++;
-						}
+						queueWeightResults.put(label[labelIndex][deviceIndex][i], weightArray[deviceIndex][i]);
 					}
 					logWeights();
 					synchronized (gpuLock) {
@@ -534,12 +508,7 @@ public class TurnTaskToScores implements Runnable {
 			Long[] weights = TurnTaskToScores.this.wqWeightCalculator.calculateWeight(trips);
 				
 			for(int i = 0; i < numRuns; i++) {
-				queue2Helper.add(new ComparablePair<Long, Integer>(weights[i], positions[i]));
-			}
-			synchronized(positionOutLock) {
-				while(!queue2Helper.isEmpty() && positionOut == queue2Helper.peek().value.intValue() && queueWeightResults.add(queue2Helper.remove().key)) {
-					positionOut++;
-				}
+				queueWeightResults.put(positions[i], weights[i]);
 			}
 			
 			logWeights();
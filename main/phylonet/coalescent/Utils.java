@@ -144,115 +144,61 @@ public class Utils {
         return (Tree)tree;
       }
 
-	public static Tree buildTreeFromClusters2(Iterable<STITreeCluster> clusters, 
-			TaxonIdentifier identifier, boolean keepclusters, Tree backboneTree, String newSpecies) {
-		
-        if ((clusters == null) || (!clusters.iterator().hasNext())) {
-          throw new RuntimeException("Empty list of clusters. The function returns a null tree.");
-        }
-    
-        //TaxonIdentifier spm = GlobalMaps.taxonNameMap.getSpeciesIdMapper().getSTTaxonIdentifier();
-        STITree tree = new STITree<Double>();
-        tree.getRoot().setData(identifier.newCluster().complementaryCluster());
-    
-        // Start from a star tree
-        for (int i = 0; i < identifier.taxonCount(); i++) {
-          tree.getRoot().createChild(identifier.getTaxonName(i)).setData(identifier.getClusterForNodeName(identifier.getTaxonName(i)));
-        }
-    
-        /**
-         *  Add each cluster to the start tree one by one
-         */
-        for (STITreeCluster tc : clusters) {
-          // Let's start with easy cases
-          if (tc.getClusterSize() <= 1 || tc.getClusterSize() == identifier.taxonCount())
-            continue;
-    
-          /**  
-           * Find the LCA of all nodes inside this cluster
-           */
-          Set<TNode> clusterLeaves = new HashSet<TNode>();
-          for (String l : tc.getClusterLeaves()) {
-            TNode node = tree.getNode(l);
-            clusterLeaves.add(node);
-          }
-    
-          SchieberVishkinLCA lcaFinder = new SchieberVishkinLCA(tree);
-          TNode lca = lcaFinder.getLCA(clusterLeaves);
-    
-          // The set of clusters that will be moved from the LCA
-          //    to become the children of this new node that we 
-          //    will (potentially) create. 
-          LinkedList<TNode> movedChildren = new LinkedList<TNode>();
-          int remainingleaves = clusterLeaves.size();
-          
-          // Go through the children of the LCA
-          for (TNode child : lca.getChildren()) {
-            STITreeCluster childCluster = (STITreeCluster) ((STINode)child).getData();
-            
-            // If the child cluster is a substet of this cluster
-            //    add it to the set of clusters that will be moved
-            //    to become the children of this cluster
-            if (tc.containsCluster(childCluster)) {
-              movedChildren.add(child);
-              remainingleaves -= childCluster.getClusterSize();
-            }
-    
-          }
-          
-          // This should only happen if our set of clusters are not compatible. 
-          // TODO: either update the documentation of the method or remove this check
-          if (movedChildren.size() == 0 || remainingleaves != 0) {
-              continue;
-          }
-    
-          // Create a new child for this cluster and adopt
-          //   the lca children that are a subset of this node
-          //   as the new node's children
-          STINode newChild = ((STINode)lca).createChild();
-          newChild.setData(tc);
-          while (!movedChildren.isEmpty()) {
-            newChild.adoptChild((TMutableNode)movedChildren.get(0));
-            movedChildren.remove(0);
-          }
-        }
-    
-        tree.setRooted(false);
-        if (!keepclusters) {
-        	for (TNode node: ((MutableTree)tree).postTraverse()) {
-        		((STINode)node).setData(null);
-        		if(node.isLeaf()){
-	        		if(((STINode)node).getName().equals(newSpecies)){
-	        			TNode sibling = node.getSiblings().get(0);
-	        	        Set<TNode> clusterLeaves = new HashSet<TNode>();
-	        	          for (TNode t : sibling.getLeaves()) {
-	        	            TNode n = backboneTree.getNode(t.getName());
-	        	            clusterLeaves.add(n);
-	        	          }
-	        	        SchieberVishkinLCA lcaFinder = new SchieberVishkinLCA((STITree)backboneTree);
-	        	        TNode lca = lcaFinder.getLCA(clusterLeaves);
-	        	        String branchLabel = lca.getName();
-	        	        String backboneRoot = backboneTree.getRoot().getName();
-	        	        if(branchLabel.equals(backboneRoot)){
-	        	        	TNode root = backboneTree.getRoot();
-	        	        	Set<TNode> complement = new HashSet<TNode>();
-	        	        	for (TNode t : root.getLeaves()) {
-	        	        		TNode n = backboneTree.getNode(t.getName());
-	        	        		complement.add(n);
-	        	        	}
-	        	        	complement.removeAll(clusterLeaves);
-	        	        	TNode lca2 = lcaFinder.getLCA(complement);
-	        	        	if(!lca2.getName().equals(branchLabel))
-	        	        		branchLabel = lca2.getName();
-	        	        }
-	        	        System.err.println("The branch that new species is attached: " + branchLabel);
-	        	        System.out.println(branchLabel);
-	        		}
-        		}
-        	}
-        }
-        return (Tree)tree;
-      }
+	/**
+	 * Names unnamed internal nodes N1, N2, ... in postorder (as 
+	 * label_internal_nodes.py did), so that every branch has a label.
+	 */
+	public static void labelInternalNodes(Tree tree) {
+		int label = 1;
+		for (TNode node : tree.postTraverse()) {
+			if (!node.isLeaf()) {
+				if (node.getName() == null || node.getName().length() == 0) {
+					((TMutableNode) node).setName("N" + label);
+				}
+				label++;
+			}
+		}
+	}
+
+	/**
+	 * Finds the backbone branch that a placed species is attached to in the 
+	 * given (placement) tree. The branch is named by the label of its lower 
+	 * node in the backbone tree.
+	 * @param tree the tree with the new species placed in it
+	 * @param backboneTree the backbone tree with labeled nodes
+	 * @param newSpecies the name of the placed species
+	 * @return the label of the backbone branch
+	 */
+	public static String getPlacementBranch(Tree tree, Tree backboneTree, String newSpecies) {
+		TNode node = tree.getNode(newSpecies);
+		if (node == null) {
+			throw new RuntimeException("Placed species "+newSpecies+" not found in the tree");
+		}
+		TNode sibling = node.getSiblings().get(0);
+		Set<TNode> clusterLeaves = new HashSet<TNode>();
+		for (TNode t : sibling.getLeaves()) {
+			TNode n = backboneTree.getNode(t.getName());
+			clusterLeaves.add(n);
+		}
+		SchieberVishkinLCA lcaFinder = new SchieberVishkinLCA((STITree)backboneTree);
+		TNode lca = lcaFinder.getLCA(clusterLeaves);
+		String branchLabel = lca.getName();
+		String backboneRoot = backboneTree.getRoot().getName();
+		if(branchLabel.equals(backboneRoot)){
+			TNode root = backboneTree.getRoot();
+			Set<TNode> complement = new HashSet<TNode>();
+			for (TNode t : root.getLeaves()) {
+				TNode n = backboneTree.getNode(t.getName());
+				complement.add(n);
+			}
+			complement.removeAll(clusterLeaves);
+			TNode lca2 = lcaFinder.getLCA(complement);
+			if(!lca2.getName().equals(branchLabel))
+				branchLabel = lca2.getName();
+		}
+		System.err.println("The branch that new species is attached: " + branchLabel);
+		return branchLabel;
+	}
 	
 	
 	/**
@@ -877,46 +877,9 @@ implements Cloneable {
 
 		int haveMissing = 0;
 		for (Tree tree : this.originalInompleteGeneTrees) {
-			if (tree.getLeafCount() != GlobalMaps.taxonIdentifier.taxonCount()) {
+			if (preProcess(tree)) {
 				haveMissing++;
 			}
-			reroot(tree);
-			Stack<STITreeCluster> stack = new Stack<STITreeCluster>();
-			for (TNode n: tree.postTraverse()) {
-				STINode node = (STINode) n;
-				if (node.isLeaf()) {
-					String nodeName = node.getName(); //GlobalMaps.TaxonNameMap.getSpeciesName(node.getName());
-
-					STITreeCluster cluster = GlobalMaps.taxonIdentifier.newCluster();
-					Integer taxonID = GlobalMaps.taxonIdentifier.taxonId(nodeName);
-					cluster.addLeaf(taxonID);
-
-					stack.add(cluster);
-					node.setData(cluster);
-
-				} else {
-					ArrayList<STITreeCluster> childbslist = new ArrayList<STITreeCluster>();
-					BitSet bs = new BitSet(GlobalMaps.taxonIdentifier.taxonCount());
-					for (TNode child: n.getChildren()) {
-						STITreeCluster pop = stack.pop();
-						childbslist.add(pop);
-						bs.or(pop.getBitSet());
-					}
-
-					STITreeCluster cluster = GlobalMaps.taxonIdentifier.newCluster((BitSet) bs.clone());
-
-					//((STINode)node).setData(new GeneTreeBitset(node.isRoot()? -2: -1));
-					stack.add(cluster);
-					node.setData(cluster);
-				}
-			}
-			String[] gtLeaves = tree.getLeaves();
-			STITreeCluster gtAll = GlobalMaps.taxonIdentifier.newCluster();
-			long ni = gtLeaves.length;
-			for (int i = 0; i < ni; i++) {
-				gtAll.addLeaf(GlobalMaps.taxonIdentifier.taxonId(gtLeaves[i]));
-			}
-			treeAllClusters.add(gtAll);
 		}
 		System.err.println(haveMissing + " trees have missing taxa");
 
@@ -924,6 +887,53 @@ implements Cloneable {
 		return haveMissing;
 	}
 
+	/**
+	 * Reroots a gene tree, sets the cluster of each of its nodes and adds
+	 * its leaves to treeAllClusters
+	 * 
+	 * @return whether the gene tree misses some taxa
+	 */
+	boolean preProcess(Tree tree) {
+		reroot(tree);
+		Stack<STITreeCluster> stack = new Stack<STITreeCluster>();
+		for (TNode n: tree.postTraverse()) {
+			STINode node = (STINode) n;
+			if (node.isLeaf()) {
+				String nodeName = node.getName(); //GlobalMaps.TaxonNameMap.getSpeciesName(node.getName());
+
+				STITreeCluster cluster = GlobalMaps.taxonIdentifier.newCluster();
+				Integer taxonID = GlobalMaps.taxonIdentifier.taxonId(nodeName);
+				cluster.addLeaf(taxonID);
+
+				stack.add(cluster);
+				node.setData(cluster);
+
+			} else {
+				ArrayList<STITreeCluster> childbslist = new ArrayList<STITreeCluster>();
+				BitSet bs = new BitSet(GlobalMaps.taxonIdentifier.taxonCount());
+				for (TNode child: n.getChildren()) {
+					STITreeCluster pop = stack.pop();
+					childbslist.add(pop);
+					bs.or(pop.getBitSet());
+				}
+
+				STITreeCluster cluster = GlobalMaps.taxonIdentifier.newCluster((BitSet) bs.clone());
+
+				//((STINode)node).setData(new GeneTreeBitset(node.isRoot()? -2: -1));
+				stack.add(cluster);
+				node.setData(cluster);
+			}
+		}
+		String[] gtLeaves = tree.getLeaves();
+		STITreeCluster gtAll = GlobalMaps.taxonIdentifier.newCluster();
+		long ni = gtLeaves.length;
+		for (int i = 0; i < ni; i++) {
+			gtAll.addLeaf(GlobalMaps.taxonIdentifier.taxonId(gtLeaves[i]));
+		}
+		treeAllClusters.add(gtAll);
+		return tree.getLeafCount() != GlobalMaps.taxonIdentifier.taxonCount();
+	}
+
 	private void reroot(Tree tr) {
 		List<STINode> children = new ArrayList<STINode>();
 		int n = tr.getLeafCount()/2;
@@ -15,7 +15,6 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import phylonet.coalescent.BipartitionWeightCalculator.Quadrapartition;
 import phylonet.coalescent.BipartitionWeightCalculator.Results;
@@ -29,12 +28,17 @@ import phylonet.util.BitSet;
 
 public class WQInference extends AbstractInference<Tripartition> {
 
+	/* Weights computed ahead of the DP in the producer/consumer mode */
+	private static final int WEIGHT_RING_SIZE = 1 << 20;
+
 	int forceAlg = -1;
 	long maxpossible;
 
 	public WQInference(Options inOptions, List<Tree> trees, List<Tree> extraTrees) {
 		super(inOptions, trees, extraTrees);
-		this.setQueueWeightResults(new LinkedBlockingQueue<Long>());
+		if (Threading.hasGPU()) {
+			this.setQueueWeightResults(new WeightRing(WEIGHT_RING_SIZE));
+		}
 		this.setQueueClusterResolutions(new LinkedBlockingQueue<Iterable<VertexPair>>());
 		this.forceAlg = inOptions.getAlg();
 	}
@@ -139,6 +143,30 @@ public class WQInference extends AbstractInference<Tripartition> {
 				this.trees.size() *  GlobalMaps.taxonIdentifier.taxonCount() * 2);
 	}
 
+	/**
+	 * Sets up the gene trees and the weight calculator, without forming 
+	 * the set X or starting the DP. Used when tripartition weights are 
+	 * requested directly (e.g., by the placement engine).
+	 */
+	void setupWeightsOnly() {
+		mapNames();
+		this.dataCollection = newCounter(newClusterCollection());
+		weightCalculator = newWeightCalculator();
+		((WQWeightCalculator)weightCalculator).setThreadingOff(true);
+		((WQDataCollection) this.dataCollection).preProcess(this);
+		this.initializeWeightCalculator();
+		this.maxpossible = this.calculateMaxPossible();
+		System.err.println("Number of quartet trees in the gene trees: "+this.maxpossible);
+	}
+
+	/**
+	 * Computes weights of a batch of tripartitions, bypassing the 
+	 * producer/consumer queues. Safe to call from several threads. 
+	 */
+	Long[] calculateWeights(Tripartition[] trips) {
+		return ((WQWeightCalculator)weightCalculator).calculateWeight(trips);
+	}
+
 	/**
 	 * This method first computes the quartet scores and then calls
 	 * scoreBranches to annotate branches (if needed). 
@@ -167,6 +195,36 @@ public class WQInference extends AbstractInference<Tripartition> {
 			//System.err.println(this.maxpossible);
 		}
 
+		long sum = sumWeights(st);
+
+		Logging.logTimeMessage("WQInference 180: ");
+			
+		System.err.println("Final quartet score is: " + sum/4l);
+		System.err.println("Final normalized quartet score is: "+ (sum/4l+0.)/this.maxpossible);
+		//System.out.println(st.toNewickWD());
+
+		if (this.getBranchAnnotation() == 0){
+			for (TNode n: st.postTraverse()) {
+				((STINode) n).setData(null);
+			}
+		} else {
+			double logscore = this.scoreBranches(st);
+
+			if (this.getBranchAnnotation() % 12 == 0) {
+				System.err.println("log local posterior: "+logscore);
+				return logscore;
+			}
+		}
+		return (sum/4l+0.)/this.maxpossible;
+
+	}
+
+
+	/**
+	 * Sum of the weights of the tripartitions of the species tree (four
+	 * times its quartet score)
+	 */
+	private long sumWeights(Tree st) {
 		((WQWeightCalculator)weightCalculator).setThreadingOff(true);
 		Stack<STITreeCluster> stack = new Stack<STITreeCluster>();
 
@@ -243,29 +301,56 @@ public class WQInference extends AbstractInference<Tripartition> {
 				throw new RuntimeException(e);
 			}
 		}
+		return sum;
+	}
 
-		Logging.logTimeMessage("WQInference 180: ");
-			
-		System.err.println("Final quartet score is: " + sum/4l);
-		System.err.println("Final normalized quartet score is: "+ (sum/4l+0.)/this.maxpossible);
-		//System.out.println(st.toNewickWD());
-
-		if (this.getBranchAnnotation() == 0){
-			for (TNode n: st.postTraverse()) {
-				((STINode) n).setData(null);
-			}
-		} else {
-			double logscore = this.scoreBranches(st);
+	/**
+	 * Quartet score of the species tree, without annotating its branches
+	 */
+	long quartetScore(Tree st) {
+		return sumWeights(st) / 4l;
+	}
 
-			if (this.getBranchAnnotation() % 12 == 0) {
-				System.err.println("log local posterior: "+logscore);
-				return logscore;
-			}
+	/**
+	 * Adds gene trees to those the weights are computed from, without
+	 * building the polytree again; it must have been built for it (see
+	 * {@link Options#setIncrementalPolytree}). Only the added gene trees
+	 * are encoded, and they cannot have new taxa.
+	 */
+	void addGeneTrees(List<Tree> added) {
+		Polytree polytree = ((WQWeightCalculator) weightCalculator).getPolytree();
+		for (Tree tr : added) {
+			((WQDataCollection) dataCollection).preProcess(tr);
+			trees.add(tr);
+			polytree.addTree(tr);
 		}
-		return (sum/4l+0.)/this.maxpossible;
-
+		polytree.update();
+		this.maxpossible = this.calculateMaxPossible();
 	}
 
+	/**
+	 * Checks that adding and removing gene trees gives the polytree built
+	 * from scratch: the first gene tree is removed and added again at the
+	 * end, and the instructions are compared with those of a polytree built
+	 * from the gene trees in their new order.
+	 */
+	void checkPolytree() {
+		WQDataCollection wqDataCollection = (WQDataCollection) dataCollection;
+		Polytree polytree = ((WQWeightCalculator) weightCalculator).getPolytree();
+		polytree.removeTree(polytree.getTreeId(0));
+		Tree first = trees.remove(0);
+		wqDataCollection.treeAllClusters.add(wqDataCollection.treeAllClusters.remove(0));
+		trees.add(first);
+		polytree.addTree(first);
+		polytree.update();
+		Polytree rebuilt = new Polytree(trees, wqDataCollection.treeAllClusters,
+				options.getKernel(), options.getKernelBatch(), false);
+		rebuilt.release();
+		if (!polytree.sameInstructions(rebuilt)) {
+			throw new RuntimeException("The polytree after adding and removing gene trees differs from a full rebuild");
+		}
+		System.err.println("Polytree check: after adding and removing gene trees, the instructions are those of a full rebuild.");
+	}
 
 	private boolean skipNode (TNode node) {
 		TNode parent = node.getParent();
@@ -358,9 +443,6 @@ public class WQInference extends AbstractInference<Tripartition> {
 		stack = new Stack<STITreeCluster>();
 		Logging.logTimeMessage("WQInference 274: " );
 			
-		AtomicInteger processCount = new AtomicInteger();
-		Object lock = new Object();
-
 		Set<TNode> skippedNodes = new HashSet<TNode>();
 		/**
 		 * For each node,
@@ -370,14 +452,13 @@ public class WQInference extends AbstractInference<Tripartition> {
 		 */
 
 		NodeData [] nodeDataList = new NodeData [st.getLeafCount()*2];
+		List<BranchScore> branches = new ArrayList<BranchScore>();
 		int ni = 0;
 		for (TNode n: st.postTraverse()) {
 			STINode node = (STINode) n;
 			if (node.isLeaf()) {
 				stack.push((STITreeCluster) node.getData());
 			} else {
-
-				NodeData nd = null;
 
 				STITreeCluster cluster = (STITreeCluster) node.getData();				
 				STITreeCluster c1 = null, c2 = null;
@@ -392,20 +473,14 @@ public class WQInference extends AbstractInference<Tripartition> {
 						stack.pop();
 				}
 				stack.push(cluster);
-				processCount.incrementAndGet();
-				Threading.execute(scoreBranchesLoop(weightCalculator2, nodeDataList, ni, node, nd, cluster, c1, c2, cs, processCount, lock));
-				ni++;
+				branches.add(new BranchScore(weightCalculator2, nodeDataList, ni, node, cluster, c1, c2, cs));
+				ni++;
 			}
 		}
-		try {
-			synchronized(lock) {
-				while(processCount.get() != 0) {
-					lock.wait();
-				}
-			}
-		}
-		catch(InterruptedException e) {
-			e.printStackTrace();
+		// All branches are scored together
+		Results[] results = weightCalculator2.getWeights();
+		for (BranchScore branch: branches) {
+			branch.finish(results);
 		}
 		Logging.logTimeMessage("WQInference 390: ");
 			
@@ -577,71 +652,79 @@ public class WQInference extends AbstractInference<Tripartition> {
 		return ret;
 	}
 
-	public scoreBranchesLoop scoreBranchesLoop(BipartitionWeightCalculator weightCalculator2,NodeData [] nodeDataList, int i, STINode node,
-			NodeData nd, STITreeCluster cluster, STITreeCluster c1, STITreeCluster c2, long cs, AtomicInteger processCount, Object lock) {
-		return new scoreBranchesLoop(weightCalculator2, nodeDataList, i, node, nd, cluster, c1, c2, cs, processCount, lock);
-	}
-
-	public class scoreBranchesLoop implements Runnable {
+	/**
+	 * The quadripartitions around one branch: added to the weight
+	 * calculator first, and turned into the node data once all branches
+	 * are scored
+	 */
+	private class BranchScore {
 		BipartitionWeightCalculator weightCalculator2;
 		NodeData [] nodeDataList;
+		int i;
 		STINode node;
-		NodeData nd;
 		STITreeCluster cluster;
 		STITreeCluster c1;
 		STITreeCluster c2;
+		STITreeCluster sister;
+		STITreeCluster remaining;
 		long cs;
-		AtomicInteger processCount;
-		Object lock;
-		int i; 
-		public scoreBranchesLoop(BipartitionWeightCalculator weightCalculator2, NodeData []  nodeDataList, int i, STINode node,
-				NodeData nd, STITreeCluster cluster, STITreeCluster c1, STITreeCluster c2, long cs, AtomicInteger processCount, Object lock) {
+		boolean multiInd = false;
+		int first = -1, count = 0; // The results of the branch
+
+		BranchScore(BipartitionWeightCalculator weightCalculator2, NodeData [] nodeDataList, int i, STINode node,
+				STITreeCluster cluster, STITreeCluster c1, STITreeCluster c2, long cs) {
 			this.weightCalculator2 = weightCalculator2;
 			this.nodeDataList = nodeDataList;
+			this.i = i;
 			this.node = node;
-			this.nd = nd;
 			this.cluster = cluster;
 			this.c1 = c1;
 			this.c2 = c2;
 			this.cs = cs;
-			this.processCount = processCount;
-			this.i = i;
-			this.lock = lock;
-		}
-		public void run() {
 			/**
 			 * For terminal branches in a multi-ind data
 			 */
 			if (cs > 1 && GlobalMaps.taxonNameMap.getSpeciesIdMapper().isSingleSP(cluster.getBitSet()))
 			{
+				multiInd = true;
 				STITreeCluster[] sisterRemaining = getSisterRemaining(node);
-				STITreeCluster sister = sisterRemaining[0]; 
-				STITreeCluster remaining = sisterRemaining[1];				
-				nd = getNodeData(0d, 0d, 0d, 0);
-				nodeDataList[i] = nd;
+				sister = sisterRemaining[0]; 
+				remaining = sisterRemaining[1];				
 
 				/**
 				 * Compute a quadripartition per each individual
 				 */
 				BitSet bitSet = cluster.getBitSet();			
 				for (int j = bitSet.nextSetBit(0); j >= 0; j = bitSet.nextSetBit(j + 1)) {
-					c1 = new STITreeCluster(cluster);
-					c1.getBitSet().clear(j);
-					c2 = GlobalMaps.taxonIdentifier.newCluster();
-					c2.getBitSet().set(j);
-					Quadrapartition[] threequads = new Quadrapartition [] { 
-							weightCalculator2.new Quadrapartition (c1,  c2, sister, remaining), 
-							weightCalculator2.new Quadrapartition (c1, sister, c2, remaining),
-							weightCalculator2.new Quadrapartition (c1, remaining, c2, sister)
-					};
+					STITreeCluster i1 = new STITreeCluster(cluster);
+					i1.getBitSet().clear(j);
+					STITreeCluster i2 = GlobalMaps.taxonIdentifier.newCluster();
+					i2.getBitSet().set(j);
+					int k = weightCalculator2.addBranch(i1, i2, sister, remaining);
+					if (first < 0) first = k;
+					count++;
+				}
+			} else if (! skipNode(node) ) { 
+				/**
+				 * Normal internal branches
+				 */
+				STITreeCluster[] sisterRemaining = getSisterRemaining(node);
+				sister = sisterRemaining[0]; 
+				remaining = sisterRemaining[1];
+				first = weightCalculator2.addBranch(c1, c2, sister, remaining);
+				count = 1;
+			}
+		}
 
-					/**
-					 * Scores all three quadripartitoins
-					 */
-					/*CommandLine.eService.execute(new scoreBranchesLoop(c1, c2, sister, remaining, cluster, nd, this, processCount, lock, geneTreesAsInts));
-					processCount.incrementAndGet();*/
-					Results s = weightCalculator2.getWeight(threequads);
+		void finish(Results[] results) {
+			NodeData nd = null;
+			if (multiInd)
+			{
+				nd = getNodeData(0d, 0d, 0d, 0);
+				nodeDataList[i] = nd;
 
+				for (int j = first; j < first + count; j++) {
+					Results s = results[j];
 					nd.mainfreq += s.qs[0];
 					nd.alt1freqs += s.qs[1];
 					nd.alt2freqs += s.qs[2];
@@ -660,21 +743,8 @@ public class WQInference extends AbstractInference<Tripartition> {
 						* (sister.getClusterSize()+0l)
 						* (remaining.getClusterSize()+0l);
 
-			} else if (! skipNode(node) ) { 
-				/**
-				 * Normal internal branches
-				 */
-				STITreeCluster[] sisterRemaining = getSisterRemaining(node);
-				STITreeCluster sister = sisterRemaining[0]; 
-				STITreeCluster remaining = sisterRemaining[1];
-
-				Quadrapartition[] threequads = new Quadrapartition [] { 
-						weightCalculator2.new Quadrapartition (c1,  c2, sister, remaining), 
-						weightCalculator2.new Quadrapartition (c1, sister, c2, remaining),
-						weightCalculator2.new Quadrapartition (c1, remaining, c2, sister)
-				};
-
-				Results s = weightCalculator2.getWeight(threequads);
+			} else if (count != 0) { 
+				Results s = results[first];
 				nd = getNodeData(s.qs[0],s.qs[1],s.qs[2],s.effn);
 				nodeDataList[i] = nd ;
 
@@ -690,6 +760,12 @@ public class WQInference extends AbstractInference<Tripartition> {
 					}
 				}
 				if (getBranchAnnotation() == 6 || getBranchAnnotation() == 16) {
+					nd.quads = new Quadrapartition [] { 
+							weightCalculator2.new Quadrapartition (c1,  c2, sister, remaining), 
+							weightCalculator2.new Quadrapartition (c1, sister, c2, remaining),
+							weightCalculator2.new Quadrapartition (c1, remaining, c2, sister)
+					};
+
 					STITreeCluster c1plussis = GlobalMaps.taxonIdentifier.newCluster();
 
 					c1plussis.setCluster((BitSet) c1.getBitSet().clone());
@@ -718,10 +794,6 @@ public class WQInference extends AbstractInference<Tripartition> {
 						":\n\t" +
 						GlobalMaps.taxonNameMap.getSpeciesIdMapper().getSTClusterForGeneCluster(cluster));
 			}
-			processCount.decrementAndGet();
-			synchronized(lock) {
-				lock.notify();
-			}
 		}
 
 	}
@@ -809,6 +881,16 @@ public class WQInference extends AbstractInference<Tripartition> {
 				this.maxpossible);
 		((WQClusterCollection)this.dataCollection.clusters).preComputeHashValues();
 		
+		/*
+		 * Without a GPU, the DP computes weights itself, in batches, so
+		 * there is no need for a producer running the DP a second time
+		 */
+		if (!Threading.hasGPU()) {
+			this.singlePass = true;
+			this.wavefront = options.isWavefront() || options.isBranchAndBound();
+			((WQWeightCalculator)weightCalculator).setThreadingOff(true);
+			return;
+		}
 		
 		AbstractInferenceProducer inferenceProducer = 
 				new WQInferenceProducer((AbstractInference) this.semiDeepCopy());
@@ -820,12 +902,7 @@ public class WQInference extends AbstractInference<Tripartition> {
 		Thread producer = new Thread(thread1);
 		producer.setPriority(Thread.MAX_PRIORITY);
 		producer.start();
-		try {
-			Thread.sleep(1000); // Meant to give a bit of head-start to the producer
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-		
+		// No head-start needed for the producer; the consumer blocks on its queues 
 		(new Thread(consumer)).start();
 
 	}
@@ -1,6 +1,7 @@
 package phylonet.coalescent;
 
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -8,7 +9,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Stack;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import phylonet.tree.model.TNode;
 import phylonet.tree.model.Tree;
@@ -27,8 +27,12 @@ class WQWeightCalculator extends AbstractWeightCalculatorConsumer<Tripartition>
 	private WQDataCollection dataCollection;
 	WeightCalculatorAlgorithm algorithm;
 	private TraversalWeightCalculator tmpalgorithm;
+	private WeightCache cache = null;
+	private WeightStore store = null;
+	/* Polytree update the cached and stored weights were computed for */
+	private int version = 0;
 
-	public WQWeightCalculator(AbstractInference<Tripartition> inference, LinkedBlockingQueue<Long> queue2) {
+	public WQWeightCalculator(AbstractInference<Tripartition> inference, WeightRing queue2) {
 		super(false, queue2);
 		this.dataCollection = (WQDataCollection) inference.dataCollection;
 		this.inference = (WQInference) inference;
@@ -37,6 +41,10 @@ class WQWeightCalculator extends AbstractWeightCalculatorConsumer<Tripartition>
 		this.algorithm = new CondensedTraversalWeightCalculator();
 		tmpalgorithm = new TraversalWeightCalculator();
 		System.err.println("Using polytree-based weight calculation.");
+		int cacheSize = inference.options.getWeightCacheSize();
+		if (cacheSize > 0) {
+			this.cache = new WeightCache(cacheSize, inference.options.getWeightCachePolicy());
+		}
 		//tmpalgorithm.setupGeneTrees((WQInference) inference);
 
 
@@ -94,7 +102,34 @@ class WQWeightCalculator extends AbstractWeightCalculatorConsumer<Tripartition>
 		@Override
 		void setupGeneTrees(WQInference inference) {
 			//System.err.println("Using polytree-based weight calculation.");
-			polytree = new Polytree(inference.trees, dataCollection);
+			String kernel = inference.options.getKernel();
+			int batch = inference.options.getKernelBatch();
+			if (inference.options.isIncrementalPolytree()) {
+				polytree = new Polytree(inference.trees, dataCollection.treeAllClusters, kernel, batch, true);
+				return;
+			}
+			PolytreeFile file = null;
+			if (inference.options.getPolytreeFile() != null) {
+				file = new PolytreeFile(inference.options.getPolytreeFile(), inference.trees);
+				try {
+					polytree = file.read(kernel, batch);
+				} catch (IOException e) {
+					System.err.println("Could not read polytree file " + file.getFile() + ": " + e.getMessage());
+				}
+				if (polytree != null) {
+					System.err.println("Polytree read from " + file.getFile());
+					return;
+				}
+			}
+			polytree = new Polytree(inference.trees, dataCollection, kernel, batch);
+			if (file != null) {
+				try {
+					file.write(polytree);
+					System.err.println("Polytree saved in " + file.getFile());
+				} catch (IOException e) {
+					System.err.println("Could not write polytree file " + file.getFile() + ": " + e.getMessage());
+				}
+			}
 		}
 
 
@@ -431,6 +466,57 @@ class WQWeightCalculator extends AbstractWeightCalculatorConsumer<Tripartition>
 	public void setupGeneTrees(WQInference wqInference) {
 		tmpalgorithm.setupGeneTrees(wqInference);
 		this.algorithm.setupGeneTrees(wqInference);
+		if (wqInference.options.getWeightStore() != null) {
+			try {
+				this.store = WeightStore.open(wqInference.options.getWeightStore(),
+						wqInference.trees, wqInference.options.getWeightStoreSize());
+			} catch (IOException e) {
+				System.err.println("Not using the weight store: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * The polytree weights are computed from, or null if they are not
+	 */
+	Polytree getPolytree() {
+		if (algorithm instanceof CondensedTraversalWeightCalculator) {
+			return ((CondensedTraversalWeightCalculator) algorithm).polytree;
+		}
+		return null;
+	}
+
+	/**
+	 * After the polytree is updated with added or removed gene trees (see
+	 * {@link Polytree#update}), the cached and stored weights are those of
+	 * the gene trees before: empties the cache, uses the store of the
+	 * current gene trees, and encodes them again as ints.
+	 */
+	private void checkVersion() {
+		Polytree polytree = getPolytree();
+		if (polytree == null || polytree.getVersion() == version) {
+			return;
+		}
+		synchronized (this) {
+			if (polytree.getVersion() == version) {
+				return;
+			}
+			if (cache != null) {
+				cache.clear();
+			}
+			if (store != null) {
+				store.flush();
+				try {
+					store = WeightStore.open(inference.options.getWeightStore(),
+							inference.trees, inference.options.getWeightStoreSize());
+				} catch (IOException e) {
+					System.err.println("Not using the weight store: " + e.getMessage());
+					store = null;
+				}
+			}
+			tmpalgorithm.setupGeneTrees((WQInference) inference);
+			version = polytree.getVersion();
+		}
 	}
 
 	//TODO: this is algorithm-specific should not be exposed. Fix. 
@@ -447,6 +533,40 @@ class WQWeightCalculator extends AbstractWeightCalculatorConsumer<Tripartition>
 		return this.algorithm.calculateWeight(t);
 	}
 
+	/**
+	 * Looks the weight up in the weight cache and then in the weight store
+	 * first, unless weights come from the producer in the order of the queue
+	 */
+	@Override
+	public Long getWeight(Tripartition t) {
+		checkVersion();
+		if ((cache == null && store == null) || !isThreadingOff()) {
+			return super.getWeight(t);
+		}
+		Long weight = cache == null ? null : cache.get(t);
+		if (weight != null) {
+			return weight;
+		}
+		weight = store == null ? null : store.get(t);
+		if (weight == null) {
+			weight = super.getWeight(t);
+			if (store != null) {
+				store.put(t, weight);
+			}
+		}
+		if (cache != null) {
+			cache.put(t, weight);
+		}
+		return weight;
+	}
+
+	/**
+	 * Computes the weights of all tripartitions in the slab
+	 */
+	void calculateWeights(TripartitionSlab slab) {
+		((CondensedTraversalWeightCalculator) this.algorithm).polytree.WQWeightByTraversal(slab);
+	}
+
 	@Override
 	Tripartition[] convertToSingletonArray(Tripartition t) {
 		return new Tripartition[]{t};
@@ -0,0 +1,406 @@
+package phylonet.coalescent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import phylonet.coalescent.IClusterCollection.VertexPair;
+import phylonet.tree.model.sti.STITreeCluster;
+import phylonet.tree.model.sti.STITreeCluster.Vertex;
+import phylonet.util.BitSet;
+
+/**
+ * Level-synchronous version of the single-pass DP. A cluster only
+ * depends on smaller clusters, so all clusters of one size are scored
+ * together once the smaller sizes are done, in three parallel steps (on
+ * a fork/join pool): finding the resolutions of each cluster, scoring
+ * all tripartitions of the level in full slabs, and keeping the best
+ * resolution of each cluster. Ties are broken deterministically (see
+ * {@link AbstractComputeMinCostTask}), so the result does not depend on
+ * the number of threads.
+ *
+ * With branch and bound, each resolution first gets an upper bound: the
+ * scores of its two sides plus, for its tripartition, the weight it would
+ * have if every gene tree quartet with two leaves on one side and one on
+ * each of the others agreed with it. Resolutions are scored in rounds,
+ * most promising first (a few per cluster, twice as many each round),
+ * and a cluster stops at the first resolution whose bound is below its
+ * best score. Resolutions that could tie are still scored, so the result
+ * is the same as without bounds.
+ *
+ * Only clusters inside the sides of the top resolutions are scored, as
+ * only those can be reached from the top; the top itself is left to the
+ * usual DP. Clusters without any resolution are marked as such instead
+ * of stopping the run, since they may not be reachable.
+ */
+class WavefrontDP<T> {
+
+	/* Largest number of clusters handled by one task */
+	private static final int GRAIN = 8;
+	/* Number of tripartitions scored together */
+	private static final int CHUNK = 64;
+	/* Resolutions per cluster scored in the first round of branch and bound */
+	private static final int FIRST_ROUND = 8;
+
+	private static final int RESOLVE = 0, WEIGH = 1, CHOOSE = 2;
+
+	private AbstractInference<T> inference;
+	private HashClusterCollection clusters;
+	private WQWeightCalculator weightCalculator;
+	private boolean bound;
+	/* Sides of the top resolutions, and the taxa of the top outside each, fewest first */
+	private Set<Vertex> sides = new HashSet<Vertex>();
+	private int[][] outside;
+	private int[] sideSizes;
+	private AtomicInteger scored = new AtomicInteger();
+	private long weighed = 0, skipped = 0;
+
+	/* Leaves of each gene tree, for the bounds */
+	private long[][] geneLeaves;
+	private int[] geneSizes;
+
+	private ThreadLocal<TripartitionSlab> slabs = new ThreadLocal<TripartitionSlab>() {
+		@Override
+		protected TripartitionSlab initialValue() {
+			return new TripartitionSlab(CHUNK);
+		}
+	};
+
+	WavefrontDP(AbstractInference<T> inference) {
+		this.inference = inference;
+		this.clusters = (HashClusterCollection) inference.dataCollection.clusters;
+		this.weightCalculator = (WQWeightCalculator) inference.weightCalculator;
+		this.bound = inference.options.isBranchAndBound();
+		if (bound) {
+			List<STITreeCluster> trees = ((WQDataCollection) inference.dataCollection).treeAllClusters;
+			geneLeaves = new long[trees.size()][];
+			geneSizes = new int[trees.size()];
+			for (int g = 0; g < geneLeaves.length; g++) {
+				geneLeaves[g] = trees.get(g).getBitSet().getArray();
+				geneSizes[g] = trees.get(g).getClusterSize();
+			}
+		}
+	}
+
+	/**
+	 * Scores all clusters below the top vertex, smallest first
+	 */
+	void run(Vertex top) {
+		long t = System.currentTimeMillis();
+		for (VertexPair bi : inference.computeClusterResolutions(top)) {
+			sides.add(bi.cluster1);
+			sides.add(bi.cluster2);
+		}
+		indexSides(top);
+		int n = top.getCluster().getClusterSize();
+		ForkJoinPool pool = new ForkJoinPool(Threading.getNumThreads());
+		int levels = 0;
+		try {
+			for (int k = 1; k < n; k++) {
+				Set<Vertex> vertices = clusters.getSubClusters(k);
+				if (vertices == null || vertices.isEmpty()) {
+					continue;
+				}
+				Level level = new Level(vertices.toArray(new Vertex[vertices.size()]));
+				int count = level.vertices.length;
+				pool.invoke(new LevelTask(level, RESOLVE, 0, count));
+				for (int round = 0; ; round++) {
+					int chunks = level.select(round);
+					if (chunks == 0) {
+						break;
+					}
+					pool.invoke(new LevelTask(level, WEIGH, 0, chunks));
+					pool.invoke(new LevelTask(level, CHOOSE, 0, count));
+					weightCalculator.countWeights(level.rowVertex.length);
+				}
+				levels++;
+			}
+		} finally {
+			pool.shutdown();
+		}
+		System.err.println("Wavefront DP scored " + scored.get() + " clusters in " + levels
+				+ " levels; time (seconds): " + (System.currentTimeMillis() - t) / 1000);
+		if (bound) {
+			System.err.println("Branch and bound skipped " + skipped + " of " + (weighed + skipped)
+					+ " tripartitions");
+		}
+	}
+
+	/**
+	 * The clusters of one size, with their resolutions and weights
+	 */
+	private class Level {
+		final Vertex[] vertices;
+		final AbstractComputeMinCostTask<T>[] tasks;
+		final List<VertexPair>[] pairs;
+		final long[][] weights;
+		/* First resolution of each cluster not scored yet, and how many are scored in this round */
+		final int[] next, taken;
+		/* Cluster and resolution of each tripartition of the round */
+		int[] rowVertex, rowPair;
+
+		@SuppressWarnings("unchecked")
+		Level(Vertex[] vertices) {
+			this.vertices = vertices;
+			this.tasks = new AbstractComputeMinCostTask[vertices.length];
+			this.pairs = new List[vertices.length];
+			this.weights = new long[vertices.length][];
+			this.next = new int[vertices.length];
+			this.taken = new int[vertices.length];
+		}
+
+		/**
+		 * Picks the resolutions scored in the given round and numbers
+		 * their tripartitions; clusters with nothing left are finished
+		 * @return the number of chunks
+		 */
+		int select(int round) {
+			int rows = 0;
+			for (int i = 0; i < vertices.length; i++) {
+				taken[i] = 0;
+				if (tasks[i] == null) {
+					continue;
+				}
+				List<VertexPair> ps = pairs[i];
+				if (bound) {
+					int end = (int) Math.min(ps.size(), next[i] + ((long) FIRST_ROUND << Math.min(round, 30)));
+					double best = vertices[i]._max_score;
+					int j = next[i];
+					while (j < end && ps.get(j).upperbound >= best) {
+						j++;
+					}
+					taken[i] = j - next[i];
+				} else {
+					taken[i] = ps.size() - next[i];
+				}
+				if (taken[i] == 0) {
+					vertices[i]._done = tasks[i].getDoneState();
+					scored.incrementAndGet();
+					skipped += ps.size() - next[i];
+					tasks[i] = null;
+					continue;
+				}
+				if (weights[i] == null) {
+					weights[i] = new long[ps.size()];
+				}
+				rows += taken[i];
+			}
+			weighed += rows;
+			rowVertex = new int[rows];
+			rowPair = new int[rows];
+			int r = 0;
+			for (int i = 0; i < vertices.length; i++) {
+				for (int j = next[i]; j < next[i] + taken[i]; j++, r++) {
+					rowVertex[r] = i;
+					rowPair[r] = j;
+				}
+			}
+			return (rows + CHUNK - 1) / CHUNK;
+		}
+	}
+
+	private class LevelTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private Level level;
+		private int step, from, to;
+
+		LevelTask(Level level, int step, int from, int to) {
+			this.level = level;
+			this.step = step;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			int grain = step == WEIGH ? 1 : GRAIN;
+			if (to - from > grain) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new LevelTask(level, step, from, mid), new LevelTask(level, step, mid, to));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				if (step == RESOLVE) {
+					resolve(level, i);
+				} else if (step == WEIGH) {
+					weigh(level, i);
+				} else {
+					choose(level, i);
+				}
+			}
+		}
+	}
+
+	/*
+	 * A side contains v if v has none of the (usually few) taxa of the top
+	 * outside it; with the single resolution of the top cluster, one side
+	 * misses one taxon and the other is a leaf
+	 */
+	private void indexSides(Vertex top) {
+		Vertex[] vs = sides.toArray(new Vertex[sides.size()]);
+		final int[][] out = new int[vs.length][];
+		Integer[] order = new Integer[vs.length];
+		for (int s = 0; s < vs.length; s++) {
+			BitSet rest = new BitSet(GlobalMaps.taxonIdentifier.taxonCount());
+			rest.or(top.getCluster().getBitSet());
+			rest.andNot(vs[s].getCluster().getBitSet());
+			out[s] = new int[rest.cardinality()];
+			for (int i = rest.nextSetBit(0), j = 0; i >= 0; i = rest.nextSetBit(i + 1)) {
+				out[s][j++] = i;
+			}
+			order[s] = s;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return out[a].length - out[b].length;
+			}
+		});
+		outside = new int[vs.length][];
+		sideSizes = new int[vs.length];
+		for (int s = 0; s < vs.length; s++) {
+			outside[s] = out[order[s]];
+			sideSizes[s] = vs[order[s]].getCluster().getClusterSize();
+		}
+	}
+
+	private boolean reachable(Vertex v) {
+		if (sides.contains(v)) {
+			return true;
+		}
+		BitSet bits = v.getCluster().getBitSet();
+		int size = v.getCluster().getClusterSize();
+		for (int s = 0; s < outside.length; s++) {
+			if (sideSizes[s] <= size) {
+				continue;
+			}
+			boolean inside = true;
+			for (int t : outside[s]) {
+				if (bits.get(t)) {
+					inside = false;
+					break;
+				}
+			}
+			if (inside) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean resolved(Vertex v) {
+		return v._done != 0 && v._done != 2;
+	}
+
+	/**
+	 * Finds the resolutions of a cluster whose sides are both resolved,
+	 * or scores it if it is a base case. With branch and bound,
+	 * resolutions are bounded and sorted by their bounds.
+	 */
+	private void resolve(Level level, int i) {
+		Vertex v = level.vertices[i];
+		if (v._done != 0 || !reachable(v)) {
+			return;
+		}
+		AbstractComputeMinCostTask<T> task = inference.newComputeMinCostTask(inference, v);
+		if (task.computeIfBaseCase()) {
+			scored.incrementAndGet();
+			return;
+		}
+		List<VertexPair> ps = new ArrayList<VertexPair>();
+		for (VertexPair bi : clusters.getClusterResolutionsInline(v)) {
+			if (resolved(bi.cluster1) && resolved(bi.cluster2)) {
+				ps.add(bi);
+			}
+		}
+		if (ps.isEmpty()) {
+			v._done = 2;
+			return;
+		}
+		if (bound) {
+			int[] inside = new int[geneLeaves.length];
+			long[] c = v.getCluster().getBitSet().getArray();
+			for (int g = 0; g < geneLeaves.length; g++) {
+				inside[g] = intersectionSize(c, geneLeaves[g]);
+			}
+			double max = Integer.MIN_VALUE;
+			for (VertexPair bi : ps) {
+				bi.upperbound = bi.cluster1._max_score + bi.cluster2._max_score
+						+ weightBound(bi.cluster1.getCluster().getBitSet().getArray(), inside);
+				max = Math.max(max, bi.upperbound);
+			}
+			Collections.sort(ps);
+			v._upper_bound = max;
+		}
+		level.tasks[i] = task;
+		level.pairs[i] = ps;
+	}
+
+	/**
+	 * Largest possible weight of a tripartition made of one side of a
+	 * cluster, the other side and the complement of the cluster: the
+	 * number of gene tree quartets with two leaves on one side and one on
+	 * each of the others, counted as in the weights
+	 */
+	private long weightBound(long[] side, int[] inside) {
+		long w = 0;
+		for (int g = 0; g < geneLeaves.length; g++) {
+			long a = intersectionSize(side, geneLeaves[g]);
+			long b = inside[g] - a;
+			long c = geneSizes[g] - inside[g];
+			w += a * b * c * (a + b + c - 3);
+		}
+		return w;
+	}
+
+	private static int intersectionSize(long[] words, long[] all) {
+		int sum = 0;
+		for (int k = Math.min(words.length, all.length) - 1; k >= 0; k--) {
+			sum += Long.bitCount(words[k] & all[k]);
+		}
+		return sum;
+	}
+
+	/**
+	 * Computes the weights of one chunk of the round
+	 */
+	private void weigh(Level level, int chunk) {
+		TripartitionSlab slab = slabs.get();
+		int first = chunk * CHUNK;
+		int last = Math.min(first + CHUNK, level.rowVertex.length);
+		for (int r = first; r < last; r++) {
+			VertexPair bi = level.pairs[level.rowVertex[r]].get(level.rowPair[r]);
+			slab.add(bi.cluster1.getCluster().getBitSet(),
+					bi.cluster2.getCluster().getBitSet(), bi.both.getCluster().getBitSet());
+		}
+		weightCalculator.calculateWeights(slab);
+		for (int r = first; r < last; r++) {
+			level.weights[level.rowVertex[r]][level.rowPair[r]] = slab.weights[r - first];
+		}
+		slab.clear();
+	}
+
+	/**
+	 * Adds the resolutions of a cluster scored in this round
+	 */
+	private void choose(Level level, int i) {
+		AbstractComputeMinCostTask<T> task = level.tasks[i];
+		if (task == null || level.taken[i] == 0) {
+			return;
+		}
+		long clusterLevelCost = task.calculateClusterLevelCost();
+		int end = level.next[i] + level.taken[i];
+		for (int j = level.next[i]; j < end; j++) {
+			VertexPair bi = level.pairs[i].get(j);
+			task.addResolution(bi.cluster1, bi.cluster2, clusterLevelCost, level.weights[i][j]);
+		}
+		level.next[i] = end;
+	}
+}
@@ -0,0 +1,145 @@
+package phylonet.coalescent;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache of tripartition weights that can be used from many
+ * threads at once. Keys are 128 bits made of the hashes of the three
+ * clusters (in the order kept by {@link Tripartition}), so a lookup
+ * does not compare bit sets and values are stored as primitive longs.
+ *
+ * Entries are spread over stripes, each with its own lock; within a
+ * stripe, a key can go to one of {@link #WAYS} slots. When all of them
+ * are used, the "lru" policy replaces the least recently used one and
+ * the "keep" policy does not add the new weight. Stripes are allocated
+ * when first written to.
+ */
+class WeightCache {
+
+	static final String LRU = "lru";
+	static final String KEEP = "keep";
+
+	private static final int STRIPES = 64;
+	private static final int WAYS = 4;
+
+	private final AtomicReferenceArray<Stripe> stripes = new AtomicReferenceArray<Stripe>(STRIPES);
+	private final int setsPerStripe;
+	private final boolean lru;
+
+	private static class Stripe {
+		final long[] keys1;
+		final long[] keys2;
+		final long[] values;
+		/* Time of last use; 0 marks an empty slot */
+		final long[] stamps;
+		long clock = 0;
+
+		Stripe(int slots) {
+			keys1 = new long[slots];
+			keys2 = new long[slots];
+			values = new long[slots];
+			stamps = new long[slots];
+		}
+	}
+
+	/**
+	 * @param size largest number of weights kept
+	 * @param policy {@link #LRU} or {@link #KEEP}
+	 */
+	WeightCache(int size, String policy) {
+		this.setsPerStripe = Math.max(1, size / (STRIPES * WAYS));
+		this.lru = LRU.equals(policy);
+	}
+
+	static long key1(Tripartition t) {
+		updateHashes(t);
+		return mix(t.cluster1.hash1, t.cluster2.hash1, t.cluster3.hash1);
+	}
+
+	static long key2(Tripartition t) {
+		updateHashes(t);
+		return mix(t.cluster1.hash2, t.cluster2.hash2, t.cluster3.hash2);
+	}
+
+	private static void updateHashes(Tripartition t) {
+		t.cluster1.updateHash();
+		t.cluster2.updateHash();
+		t.cluster3.updateHash();
+	}
+
+	/* Cluster hashes add up over taxa, so the sides are weighted differently */
+	private static long mix(long a, long b, long c) {
+		return a * 0x9E3779B97F4A7C15L + b * 0xC2B2AE3D27D4EB4FL + c;
+	}
+
+	/**
+	 * The weight of the tripartition, or null if it is not cached
+	 */
+	Long get(Tripartition t) {
+		long k1 = key1(t), k2 = key2(t);
+		Stripe s = stripe(k1, false);
+		if (s == null) {
+			return null;
+		}
+		int first = set(k1) * WAYS;
+		synchronized (s) {
+			for (int i = first; i < first + WAYS; i++) {
+				if (s.stamps[i] != 0 && s.keys1[i] == k1 && s.keys2[i] == k2) {
+					if (lru) {
+						s.stamps[i] = ++s.clock;
+					}
+					return s.values[i];
+				}
+			}
+		}
+		return null;
+	}
+
+	void put(Tripartition t, long weight) {
+		long k1 = key1(t), k2 = key2(t);
+		Stripe s = stripe(k1, true);
+		int first = set(k1) * WAYS;
+		synchronized (s) {
+			int slot = -1;
+			for (int i = first; i < first + WAYS; i++) {
+				if (s.stamps[i] == 0 || (s.keys1[i] == k1 && s.keys2[i] == k2)) {
+					slot = i;
+					break;
+				}
+				if (lru && (slot == -1 || s.stamps[i] < s.stamps[slot])) {
+					slot = i;
+				}
+			}
+			if (slot == -1) {
+				return;
+			}
+			s.keys1[slot] = k1;
+			s.keys2[slot] = k2;
+			s.values[slot] = weight;
+			s.stamps[slot] = ++s.clock;
+		}
+	}
+
+	/**
+	 * Drops all weights, e.g. when the gene trees change
+	 */
+	void clear() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes.set(i, null);
+		}
+	}
+
+	private int set(long k1) {
+		return (int) ((k1 >>> 6) % setsPerStripe);
+	}
+
+	private Stripe stripe(long k1, boolean create) {
+		int index = (int) (k1 & (STRIPES - 1));
+		Stripe s = stripes.get(index);
+		if (s == null && create) {
+			stripes.compareAndSet(index, null, new Stripe(setsPerStripe * WAYS));
+			s = stripes.get(index);
+		}
+		return s;
+	}
+}
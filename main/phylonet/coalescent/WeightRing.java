@@ -0,0 +1,84 @@
+package phylonet.coalescent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands weights from the threads that compute them to the DP, in the
+ * order of the tripartitions, without boxing or locks.
+ *
+ * Weight number s goes to slot s modulo the capacity. A writer stores the
+ * weight and then publishes s as the sequence of the slot (an ordered
+ * write); the single reader waits until the next slot has the sequence it
+ * expects, so weights computed out of order need no reordering. Writers
+ * wait when they are a full ring ahead of the reader.
+ */
+class WeightRing {
+
+	private static final int SPINS = 100;
+	private static final int YIELDS = 100;
+	private static final long PARK_NANOS = 20000;
+
+	private final int mask;
+	private final long[] weights;
+	private final AtomicLongArray sequences;
+	/* Sequence number of the next weight to read */
+	private volatile long next = 0;
+
+	/**
+	 * The capacity is rounded up to a power of two
+	 */
+	WeightRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		this.mask = size - 1;
+		this.weights = new long[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, -1);
+		}
+	}
+
+	/**
+	 * Publishes the weight of the given sequence number; can be called
+	 * from any thread, once per sequence number
+	 */
+	void put(long sequence, long weight) {
+		for (int i = 0; sequence - next >= weights.length; i++) {
+			backoff(i);
+		}
+		int slot = (int) sequence & mask;
+		weights[slot] = weight;
+		sequences.lazySet(slot, sequence);
+	}
+
+	/**
+	 * Waits for the next weight in sequence order; only one thread reads
+	 */
+	long take() {
+		long sequence = next;
+		int slot = (int) sequence & mask;
+		for (int i = 0; sequences.get(slot) != sequence; i++) {
+			backoff(i);
+		}
+		long weight = weights[slot];
+		next = sequence + 1;
+		return weight;
+	}
+
+	/**
+	 * Number of weights read so far
+	 */
+	long taken() {
+		return next;
+	}
+
+	private static void backoff(int i) {
+		if (i < SPINS) {
+			return;
+		} else if (i < SPINS + YIELDS) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+}
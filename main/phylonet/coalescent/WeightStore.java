@@ -0,0 +1,209 @@
+package phylonet.coalescent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import phylonet.tree.model.Tree;
+
+/**
+ * Tripartition weights kept on disk and shared by all runs (and running
+ * processes) on the same gene trees. The file is named after a
+ * fingerprint of the gene trees and of the taxon table with its hashes,
+ * so weights are only found by runs for which they are valid; keys are
+ * the same 128-bit cluster hashes as in {@link WeightCache}.
+ *
+ * The file is a memory-mapped open-addressing table of slots with the
+ * two keys, the weight and a check word, written last. Reads take no
+ * lock: a slot counts only if its check word matches the rest, so a slot
+ * being written by another process reads as missing. New weights are
+ * buffered and added under an exclusive lock of the file, at most
+ * {@link #FLUSH} at a time and at exit. Slots are never replaced; when
+ * {@link #PROBES} slots are used, the weight is not added.
+ */
+class WeightStore {
+
+	private static final int MAGIC = 0x57545331;
+	private static final int HEADER = 4096;
+	private static final int SLOT = 32;
+	private static final int PROBES = 16;
+	private static final int FLUSH = 4096;
+	/* Largest number of slots (a power of two) that fits in one mapping */
+	static final int MAX_SIZE = 1 << 25;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer map;
+	private final int mask;
+
+	/* Stores opened by this process, by file */
+	private static final Map<File, WeightStore> open = new HashMap<File, WeightStore>();
+
+	private long[] pending = new long[3 * FLUSH];
+	private int pendingCount = 0;
+	private int added = 0;
+	private AtomicInteger found = new AtomicInteger();
+
+	/**
+	 * The store of the given gene trees in the directory, created if
+	 * needed; size is the number of slots, rounded up to a power of two,
+	 * used when the file is created.
+	 */
+	static synchronized WeightStore open(File dir, List<Tree> trees, int size) throws IOException {
+		String key = fingerprint(trees);
+		File file = new File(dir, "weights." + key + ".wts").getAbsoluteFile();
+		WeightStore store = open.get(file);
+		if (store == null) {
+			dir.mkdirs();
+			store = new WeightStore(file, key, size);
+			open.put(file, store);
+		}
+		return store;
+	}
+
+	private WeightStore(File file, String key, int size) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		FileLock lock = channel.lock();
+		try {
+			if (raf.length() == 0) {
+				int slots = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+				raf.setLength(HEADER + (long) slots * SLOT);
+				raf.writeInt(MAGIC);
+				raf.writeInt(slots);
+				raf.writeUTF(key);
+			}
+			raf.seek(0);
+			int magic = raf.readInt();
+			int slots = raf.readInt();
+			if (magic != MAGIC || !key.equals(raf.readUTF())) {
+				throw new IOException("Weight store " + file + " is corrupt");
+			}
+			this.mask = slots - 1;
+			this.map = channel.map(FileChannel.MapMode.READ_WRITE, HEADER, (long) slots * SLOT);
+		} finally {
+			lock.release();
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				close();
+			}
+		});
+		System.err.println("Using weight store " + file + " with " + (mask + 1) + " slots");
+	}
+
+	/**
+	 * Hash of the gene trees and of the taxa with their cluster hashes
+	 */
+	static String fingerprint(List<Tree> trees) {
+		StringBuilder sb = new StringBuilder();
+		TaxonIdentifier taxa = GlobalMaps.taxonIdentifier;
+		for (int i = 0; i < taxa.taxonCount(); i++) {
+			sb.append(taxa.getTaxonName(i)).append(' ')
+				.append(taxa.hash1[i]).append(' ').append(taxa.hash2[i]).append('\n');
+		}
+		for (Tree tr : trees) {
+			sb.append(tr.toNewick()).append('\n');
+		}
+		return GeneTreeCache.digest(sb.toString());
+	}
+
+	/**
+	 * The weight of the tripartition, or null if it is not stored
+	 */
+	Long get(Tripartition t) {
+		long k1 = WeightCache.key1(t), k2 = WeightCache.key2(t);
+		int slot = (int) (k1 >>> 32 ^ k1) & mask;
+		for (int i = 0; i < PROBES; i++, slot = (slot + 1) & mask) {
+			int p = slot * SLOT;
+			long check = map.getLong(p + 24);
+			if (check == 0) {
+				return null;
+			}
+			long s1 = map.getLong(p), s2 = map.getLong(p + 8), w = map.getLong(p + 16);
+			if (s1 == k1 && s2 == k2 && check == check(s1, s2, w)) {
+				found.incrementAndGet();
+				return w;
+			}
+		}
+		return null;
+	}
+
+	void put(Tripartition t, long weight) {
+		long k1 = WeightCache.key1(t), k2 = WeightCache.key2(t);
+		synchronized (this) {
+			pending[pendingCount++] = k1;
+			pending[pendingCount++] = k2;
+			pending[pendingCount++] = weight;
+			if (pendingCount == pending.length) {
+				flush();
+			}
+		}
+	}
+
+	private static long check(long k1, long k2, long w) {
+		return (k1 * 0x9E3779B97F4A7C15L ^ k2 * 0xC2B2AE3D27D4EB4FL ^ w) | 1;
+	}
+
+	/**
+	 * Adds the buffered weights to the file
+	 */
+	synchronized void flush() {
+		if (pendingCount == 0 || !raf.getChannel().isOpen()) {
+			return;
+		}
+		try {
+			FileLock lock = raf.getChannel().lock();
+			try {
+				for (int e = 0; e < pendingCount; e += 3) {
+					insert(pending[e], pending[e + 1], pending[e + 2]);
+				}
+			} finally {
+				lock.release();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write weight store " + file, e);
+		}
+		pendingCount = 0;
+	}
+
+	private void insert(long k1, long k2, long w) {
+		int slot = (int) (k1 >>> 32 ^ k1) & mask;
+		for (int i = 0; i < PROBES; i++, slot = (slot + 1) & mask) {
+			int p = slot * SLOT;
+			long check = map.getLong(p + 24);
+			if (check == 0) {
+				map.putLong(p, k1);
+				map.putLong(p + 8, k2);
+				map.putLong(p + 16, w);
+				map.putLong(p + 24, check(k1, k2, w));
+				added++;
+				return;
+			}
+			if (map.getLong(p) == k1 && map.getLong(p + 8) == k2) {
+				return;
+			}
+		}
+	}
+
+	synchronized void close() {
+		if (!raf.getChannel().isOpen()) {
+			return;
+		}
+		flush();
+		System.err.println("Weight store: " + found + " weights found, " + added + " added");
+		try {
+			raf.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -7,12 +7,6 @@ test $# -ne "5" && echo "Usage: $0 [GENE TREES FILE] [BACKBONE TREE FILE] [OUTPU
 
 comm -2 -3 <(nw_labels -I $genetrees | tr -d '\r'  | sort | uniq ) <(nw_labels -I $backbone| tr -d '\r'  | sort) > $outdir/new_labels
 
-for label in $(cat $outdir/new_labels);do
-	echo "Inserting $label ..." 
-	java -jar -Djava.library.path=$repo/lib/ -jar $repo/instral.5.13.4.jar -i $genetrees -f $backbone -o $outdir/out-$label --placement $label --no-scoring -C -T1 2> $outdir/out-$label.log > $label.br
-	echo -n "$label " >> $outdir/placement-map
-	cat $label.br >> $outdir/placement-map	
-done
-
-python3 combine_insertions.py $backbone $outdir/placement-map $outdir/$out
+echo "Inserting $(wc -l < $outdir/new_labels) species ..."
+java -Djava.library.path=$repo/lib/ -jar $repo/instral.5.13.4.jar -i $genetrees -f $backbone -o $outdir/out-placements --placement $outdir/new_labels --placement-map $outdir/placement-map --placement-tree $outdir/$out --no-scoring -C -T1 2> $outdir/placements.log
 